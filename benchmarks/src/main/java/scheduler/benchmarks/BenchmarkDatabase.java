@@ -0,0 +1,147 @@
+package scheduler.benchmarks;
+
+import scheduler.util.PasswordHasher;
+import scheduler.util.TimeSlots;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// A throwaway SQLite database built from sqlite/create.sql and seeded with generated users,
+// availabilities, vaccines and appointments
+public class BenchmarkDatabase {
+
+    public static final String PASSWORD = "password";
+    private static final Date FIRST_DAY = Date.valueOf("2030-01-01");
+
+    private final Path file;
+
+    private BenchmarkDatabase(Path file) {
+        this.file = file;
+    }
+
+    // Creates and seeds the database, then points the scheduler at it through the DBPath setting.
+    // Must run before anything in the scheduler opens a connection.
+    public static BenchmarkDatabase create(int caregivers, int patients, int days, int vaccines, int doses,
+                                           int appointments) throws IOException, SQLException {
+        Path file = Files.createTempFile("scheduler-benchmark", ".db");
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + file)) {
+            con.setAutoCommit(false);
+            createSchema(con);
+            seed(con, caregivers, patients, days, vaccines, doses, appointments);
+            con.commit();
+        }
+        System.setProperty("DBPath", file.toString());
+        return new BenchmarkDatabase(file);
+    }
+
+    public static String caregiverName(int i) {
+        return "caregiver" + i;
+    }
+
+    public static String patientName(int i) {
+        return "patient" + i;
+    }
+
+    public static String vaccineName(int i) {
+        return "vaccine" + i;
+    }
+
+    public static Date day(int i) {
+        return Date.valueOf(FIRST_DAY.toLocalDate().plusDays(i));
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(Path.of(file + "-wal"));
+        Files.deleteIfExists(Path.of(file + "-shm"));
+    }
+
+    private static void createSchema(Connection con) throws IOException, SQLException {
+        String script;
+        try (InputStream in = BenchmarkDatabase.class.getResourceAsStream("/sqlite/create.sql")) {
+            if (in == null) {
+                throw new IOException("sqlite/create.sql is not on the classpath");
+            }
+            script = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        try (Statement statement = con.createStatement()) {
+            for (String sql : script.split(";")) {
+                if (!sql.replaceAll("--.*", "").isBlank()) {
+                    statement.executeUpdate(sql);
+                }
+            }
+        }
+    }
+
+    private static void seed(Connection con, int caregivers, int patients, int days, int vaccines, int doses,
+                             int appointments) throws SQLException {
+        // every user shares a password and salt so seeding doesn't spend minutes hashing
+        PasswordHasher hasher = PasswordHasher.getDefault();
+        byte[] salt = hasher.newSalt();
+        byte[] hash = hasher.hash(PASSWORD, salt);
+
+        try (PreparedStatement statement = con.prepareStatement("INSERT INTO Caregivers VALUES (?, ?, ?)")) {
+            for (int i = 0; i < caregivers; i++) {
+                statement.setString(1, caregiverName(i));
+                statement.setBytes(2, salt);
+                statement.setBytes(3, hash);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        try (PreparedStatement statement = con.prepareStatement("INSERT INTO Patients VALUES (?, ?, ?)")) {
+            for (int i = 0; i < patients; i++) {
+                statement.setString(1, patientName(i));
+                statement.setBytes(2, salt);
+                statement.setBytes(3, hash);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        try (PreparedStatement statement = con.prepareStatement("INSERT INTO Availabilities VALUES (?, ?, ?, 0)")) {
+            for (int d = 0; d < days; d++) {
+                for (int i = 0; i < caregivers; i++) {
+                    statement.setDate(1, day(d));
+                    statement.setString(2, caregiverName(i));
+                    statement.setLong(3, TimeSlots.clinicDay());
+                    statement.addBatch();
+                }
+            }
+            statement.executeBatch();
+        }
+        try (PreparedStatement statement = con.prepareStatement("INSERT INTO Vaccines VALUES (?, ?)")) {
+            for (int i = 0; i < vaccines; i++) {
+                statement.setString(1, vaccineName(i));
+                statement.setInt(2, doses);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        // past appointments spread over the users, on days before the bookable ones
+        try (PreparedStatement statement = con.prepareStatement("INSERT INTO Appointments VALUES (?, ?, ?, ?, ?, ?)")) {
+            for (int i = 0; i < appointments; i++) {
+                statement.setLong(1, i + 1);
+                statement.setString(2, vaccineName(i % Math.max(1, vaccines)));
+                statement.setString(3, patientName(i % Math.max(1, patients)));
+                statement.setString(4, caregiverName(i % Math.max(1, caregivers)));
+                statement.setDate(5, day(-1 - i % 365));
+                statement.setInt(6, 9 + i % 8);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        try (PreparedStatement statement = con.prepareStatement("UPDATE Sequences SET NextValue = ? WHERE Name = 'Appointments'")) {
+            statement.setLong(1, appointments + 1);
+            statement.executeUpdate();
+        }
+    }
+}
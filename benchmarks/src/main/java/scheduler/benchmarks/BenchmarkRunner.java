@@ -0,0 +1,27 @@
+package scheduler.benchmarks;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks twice, on one thread and on bench.threads threads (default: one per core).
+// Any JMH command line options are applied to both runs, e.g. -p patients=10000 or -rf json.
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        int threads = Integer.getInteger("bench.threads", Runtime.getRuntime().availableProcessors());
+        for (int t : new int[]{1, threads}) {
+            OptionsBuilder builder = new OptionsBuilder();
+            builder.parent(commandLine).threads(t);
+            if (commandLine.getIncludes().isEmpty()) {
+                builder.include(SchedulerBenchmarks.class.getSimpleName());
+            }
+            Options options = builder.build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package scheduler.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import scheduler.Scheduler;
+import scheduler.Session;
+import scheduler.db.HiLoAppointmentIdAllocator;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.service.CaregiverSelectionStrategy;
+import scheduler.service.Reservation;
+import scheduler.service.ReservationEngine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// One benchmark per command path. Run single-threaded and at N threads through BenchmarkRunner,
+// or with the usual JMH options (e.g. -t 8) through java -jar benchmarks.jar.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SchedulerBenchmarks {
+
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"50"})
+        public int caregivers;
+
+        @Param({"1000"})
+        public int patients;
+
+        @Param({"90"})
+        public int days;
+
+        @Param({"5"})
+        public int vaccines;
+
+        @Param({"10000"})
+        public int appointments;
+
+        // how reserve picks among the caregivers of a date, see CaregiverSelectionStrategy
+        @Param({"random", "alphabetical"})
+        public String selection;
+
+        public BenchmarkDatabase database;
+        public ReservationEngine engine;
+        private final AtomicInteger nextThread = new AtomicInteger();
+        // operations that failed with an SQLException (e.g. SQLITE_BUSY under contention): counted
+        // and reported instead of aborting the run
+        public final LongAdder failures = new LongAdder();
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, SQLException {
+            // doses are never the bottleneck: every reserve is paired with a cancel
+            database = BenchmarkDatabase.create(caregivers, patients, days, vaccines, 1_000_000, appointments);
+            engine = new ReservationEngine(HiLoAppointmentIdAllocator.getDefault(),
+                    CaregiverSelectionStrategy.named(selection));
+        }
+
+        @TearDown(Level.Iteration)
+        public void reportFailures() {
+            long failed = failures.sumThenReset();
+            if (failed > 0) {
+                System.out.println("(" + failed + " operations failed with SQLException)");
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            database.delete();
+        }
+    }
+
+    // a logged-in patient and a caregiver per benchmark thread, output discarded
+    @State(Scope.Thread)
+    public static class Sessions {
+        public Session patientSession;
+        public Caregiver caregiver;
+        public String patientName;
+        public int nextUploadDay;
+
+        @Setup(Level.Trial)
+        public void setUp(Database db) {
+            int thread = db.nextThread.getAndIncrement();
+            patientName = BenchmarkDatabase.patientName(thread % db.patients);
+            caregiver = new Caregiver.CaregiverBuilder(BenchmarkDatabase.caregiverName(thread % db.caregivers),
+                    new byte[0], new byte[0]).build();
+            patientSession = new Session(new PrintWriter(OutputStream.nullOutputStream()));
+            patientSession.setCurrentPatient(new Patient.PatientBuilder(patientName, new byte[0], new byte[0]).build());
+            // uploads go after the seeded days, each thread in its own year so they never collide
+            nextUploadDay = db.days + thread * 366;
+        }
+    }
+
+    @Benchmark
+    public Patient loginPatient(Database db) {
+        String name = BenchmarkDatabase.patientName(ThreadLocalRandom.current().nextInt(db.patients));
+        try {
+            return new Patient.PatientGetter(name, BenchmarkDatabase.PASSWORD).get();
+        } catch (SQLException e) {
+            db.failures.increment();
+            return null;
+        }
+    }
+
+    @Benchmark
+    public void uploadAvailability(Database db, Sessions sessions) {
+        try {
+            sessions.caregiver.uploadAvailability(BenchmarkDatabase.day(sessions.nextUploadDay++));
+        } catch (SQLException e) {
+            db.failures.increment();
+        }
+    }
+
+    @Benchmark
+    public boolean searchCaregiverSchedule(Database db, Sessions sessions) {
+        Date d = BenchmarkDatabase.day(ThreadLocalRandom.current().nextInt(db.days));
+        return Scheduler.execute(sessions.patientSession, "search_caregiver_schedule " + d);
+    }
+
+    @Benchmark
+    public boolean showAppointments(Sessions sessions) {
+        return Scheduler.execute(sessions.patientSession, "show_appointments");
+    }
+
+    // reserve followed by cancel of the same appointment, which hands the slot and dose back so the
+    // seeded capacity never runs out
+    @Benchmark
+    public void reserveAndCancel(Database db, Sessions sessions, Blackhole blackhole) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            Reservation reservation = db.engine.reserve(sessions.patientName,
+                    BenchmarkDatabase.day(random.nextInt(db.days)),
+                    BenchmarkDatabase.vaccineName(random.nextInt(db.vaccines)));
+            blackhole.consume(reservation);
+            if (reservation.isBooked()) {
+                blackhole.consume(db.engine.cancel(reservation.getAppointmentId(), sessions.patientName));
+            }
+        } catch (SQLException e) {
+            db.failures.increment();
+        }
+    }
+}
@@ -5,9 +5,12 @@ CREATE TABLE Caregivers (
     PRIMARY KEY (Username)
 );
 
+-- one row per caregiver and day, the hours offered and the hours booked as bits (see TimeSlots)
 CREATE TABLE Availabilities (
     Time date,
     Username varchar(255) REFERENCES Caregivers,
+    Slots bigint NOT NULL DEFAULT 130560,
+    Booked bigint NOT NULL DEFAULT 0,
     PRIMARY KEY (Time, Username)
 );
 
@@ -28,5 +31,73 @@ CREATE TABLE Appointments (
     vaccine_name varchar(255) REFERENCES Vaccines(Name),
     patient_name varchar(255) REFERENCES Patients(Name),
     caregiver_name varchar(255) REFERENCES Caregivers(Username),
-    Time date
-);
\ No newline at end of file
+    Time date,
+    Hour int
+);
+
+-- next unreserved id per sequence, handed out in blocks by TableBlockSource
+CREATE TABLE Sequences (
+    Name varchar(255) PRIMARY KEY,
+    NextValue bigint
+);
+
+INSERT INTO Sequences VALUES ('Appointments', 1);
+
+-- show_appointments pages through a user's appointments in aid order
+CREATE INDEX AppointmentsByPatient ON Appointments (patient_name, aid);
+CREATE INDEX AppointmentsByCaregiver ON Appointments (caregiver_name, aid);
+CREATE INDEX AppointmentsByVaccine ON Appointments (vaccine_name);
+CREATE INDEX AppointmentsByTime ON Appointments (Time);
+
+-- migrations already contained in this script, see SchemaMigrator
+CREATE TABLE SchemaVersion (
+    Version int PRIMARY KEY,
+    Description varchar(255)
+);
+
+INSERT INTO SchemaVersion VALUES (1, 'secondary indexes for appointment lookups');
+
+-- patients queued for a date and vaccine, booked in Joined order by WaitlistService. The vaccine
+-- doesn't have to be stocked yet, so it is not a reference
+CREATE TABLE Waitlist (
+    patient_name varchar(255) REFERENCES Patients(Name),
+    vaccine_name varchar(255),
+    Time date,
+    Joined bigint,
+    PRIMARY KEY (patient_name, Time, vaccine_name)
+);
+
+CREATE INDEX WaitlistByTime ON Waitlist (Time, Joined);
+CREATE INDEX WaitlistByVaccine ON Waitlist (vaccine_name, Joined);
+
+INSERT INTO SchemaVersion VALUES (2, 'waitlist');
+
+-- appointments and availabilities dated before the archival cutoff, moved out of the live tables
+-- by ArchiveJob so those only hold the current campaign. show_appointments archive reads them
+CREATE TABLE AppointmentsArchive (
+    aid int PRIMARY KEY,
+    vaccine_name varchar(255),
+    patient_name varchar(255),
+    caregiver_name varchar(255),
+    Time date,
+    Hour int
+);
+
+CREATE INDEX AppointmentsArchiveByPatient ON AppointmentsArchive (patient_name, aid);
+CREATE INDEX AppointmentsArchiveByCaregiver ON AppointmentsArchive (caregiver_name, aid);
+
+CREATE TABLE AvailabilitiesArchive (
+    Time date,
+    Username varchar(255),
+    Slots bigint NOT NULL DEFAULT 130560,
+    Booked bigint NOT NULL DEFAULT 0,
+    PRIMARY KEY (Time, Username)
+);
+
+INSERT INTO SchemaVersion VALUES (3, 'archive tables');
+
+-- the Slots, Booked and Hour columns above
+INSERT INTO SchemaVersion VALUES (4, 'hourly time slots');
+
+-- the Sequences table above
+INSERT INTO SchemaVersion VALUES (5, 'appointment id sequences');
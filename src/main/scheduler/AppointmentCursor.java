@@ -0,0 +1,48 @@
+package scheduler;
+
+import java.sql.Date;
+
+// Where show_appointments stopped, so show_appointments next can carry on after the last aid
+// printed instead of counting rows with OFFSET
+class AppointmentCursor {
+    private final Date start;
+    private final Date end;
+    private final int pageSize;
+    private final long afterAid;
+    // paging through AppointmentsArchive instead of Appointments
+    private final boolean archived;
+
+    // start and end are both null for no date range, a pageSize of 0 means no paging
+    AppointmentCursor(Date start, Date end, int pageSize, long afterAid, boolean archived) {
+        this.start = start;
+        this.end = end;
+        this.pageSize = pageSize;
+        this.afterAid = afterAid;
+        this.archived = archived;
+    }
+
+    // Getters
+    Date getStart() {
+        return start;
+    }
+
+    Date getEnd() {
+        return end;
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    long getAfterAid() {
+        return afterAid;
+    }
+
+    boolean isArchived() {
+        return archived;
+    }
+
+    AppointmentCursor after(long aid) {
+        return new AppointmentCursor(start, end, pageSize, aid, archived);
+    }
+}
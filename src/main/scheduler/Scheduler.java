@@ -1,198 +1,396 @@
 package scheduler;
 
+import scheduler.bulk.BulkImporter;
+import scheduler.bulk.ImportResult;
+import scheduler.db.AvailabilityIndex;
 import scheduler.db.ConnectionManager;
+import scheduler.db.SchemaMigrator;
+import scheduler.db.ShardRouter;
+import scheduler.db.UsernameRegistry;
+import scheduler.metrics.Histogram;
+import scheduler.metrics.Metrics;
 import scheduler.model.Caregiver;
 import scheduler.model.Patient;
-import scheduler.model.Vaccine;
-import scheduler.util.Util;
+import scheduler.model.VaccineRepository;
+import scheduler.service.Appointment;
+import scheduler.service.ArchiveJob;
+import scheduler.service.AppointmentPage;
+import scheduler.service.Cancellation;
+import scheduler.service.Registration;
+import scheduler.service.Reservation;
+import scheduler.service.ReservationEngine;
+import scheduler.service.Schedule;
+import scheduler.service.SchedulerService;
+import scheduler.service.SeriesReservation;
+import scheduler.service.WaitlistService;
+import scheduler.util.Settings;
+import scheduler.util.TimeSlots;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.sql.SQLException;
 import java.sql.Date;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Scheduler {
 
-    // objects to keep track of the currently logged-in user
-    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
-    //       since only one user can be logged-in at a time
-    private static Caregiver currentCaregiver = null;
-    private static Patient currentPatient = null;
+    // upper bound for upload_availability_range, a typo in the year shouldn't insert centuries of rows
+    private static final int MAX_UPLOAD_RANGE_DAYS = 366;
+
+    // books appointments in one transaction per reservation
+    private static final ReservationEngine reservationEngine = new ReservationEngine();
+    // books waiting patients as soon as a cancellation, upload or restock makes room for them
+    private static final WaitlistService waitlist = new WaitlistService(reservationEngine,
+            Settings.getInt("WaitlistBatchSize", 100), Settings.getLong("WaitlistSweepS", 30));
+    // moves past appointments and availabilities out of the live tables
+    private static final ArchiveJob archiveJob = ArchiveJob.getDefault();
+    // runs the commands, the console waits for each one before it reads the next line
+    private static final SchedulerService service = new SchedulerService(reservationEngine, waitlist, archiveJob,
+            SchedulerService.defaultExecutor());
+
+    // commands get a latency histogram each, anything else is recorded as invalid
+    private static final Set<String> COMMANDS = Set.of("create_patient", "create_caregiver", "login_patient",
+            "login_caregiver", "search_caregiver_schedule", "reserve", "reserve_series", "join_waitlist",
+            "leave_waitlist", "upload_availability", "upload_availability_range", "cancel", "add_doses", "import",
+            "show_appointments", "archive", "stats", "logout", "quit");
+    private static final Map<String, Histogram> commandLatency = new ConcurrentHashMap<>();
+    // caregivers who may run archive, a comma separated list; nobody by default, the scheduled job
+    // (ArchiveIntervalS) archives on its own
+    private static final Set<String> ARCHIVE_ADMINS = Set.copyOf(List.of(
+            Settings.get("ArchiveAdmins", "").split("\\s*,\\s*")));
+    // writes --batch runs together in one transaction, with the logins and logouts between them
+    private static final Set<String> GROUPABLE = Set.of("create_patient", "create_caregiver", "upload_availability",
+            "add_doses", "login_patient", "login_caregiver", "logout");
+    // on a sharded database availabilities are written to the date's shard, outside the group's
+    // catalog transaction, so they can't be rolled back with it
+    private static final Set<String> SHARD_WRITES = Set.of("upload_availability");
 
     public static void main(String[] args) {
-        // printing greetings text
-        System.out.println();
-        System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
-        System.out.println("*** Please enter one of the following commands ***");
-        System.out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
-        System.out.println("> create_caregiver <username> <password>");
-        System.out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
-        System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
-        System.out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
-        System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
-        System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");  // TODO: implement show_appointments (Part 2)
-        System.out.println("> logout");  // TODO: implement logout (Part 2)
-        System.out.println("> quit");
-        System.out.println();
+        startMetricsDump();
+        migrateSchema();
+        loadAvailabilityIndex();
+        loadUsernameRegistries();
+        // patients may have been left waiting by the previous run
+        waitlist.start();
+        waitlist.sweep();
+        archiveJob.start();
+
+        // scheduler --server [port] serves many users over a local socket instead of stdin
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : Settings.getInt("ServerPort", 8787);
+            try {
+                new SchedulerServer(port).serve();
+            } catch (IOException e) {
+                System.out.println("Error occurred when starting server: " + e.getMessage());
+            }
+            return;
+        }
+
+        // scheduler --batch [file] runs the commands of a file, or of stdin if there is none or it is -
+        if (args.length > 0 && args[0].equals("--batch")) {
+            try (BufferedReader in = args.length > 1 && !args[1].equals("-")
+                    ? Files.newBufferedReader(Path.of(args[1]))
+                    : new BufferedReader(new InputStreamReader(System.in))) {
+                Session session = new Session(new PrintWriter(new BufferedWriter(
+                        new OutputStreamWriter(System.out), 1 << 16)));
+                runBatch(session, in, Settings.getInt("BatchGroupSize", 1000));
+                session.flush();
+            } catch (IOException e) {
+                System.out.println("Error occurred when reading batch: " + e.getMessage());
+            }
+            return;
+        }
+
+        Session session = new Session(new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out))));
+        printGreeting(session);
 
         // read input from user
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
         while (true) {
-            System.out.print("> ");
+            session.print("> ");
+            session.flush();
             String response = "";
             try {
                 response = r.readLine();
             } catch (IOException e) {
-                System.out.println("Please try again!");
+                session.println("Please try again!");
             }
-            // split the user input by spaces
-            String[] tokens = response.split(" ");
-            // check if input exists
-            if (tokens.length == 0) {
-                System.out.println("Please try again!");
-                continue;
-            }
-            // determine which operation to perform
-            String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
+            boolean keepGoing = execute(session, response);
+            session.flush();
+            if (!keepGoing) {
                 return;
-            } else {
-                System.out.println("Invalid operation name!");
             }
         }
     }
 
-    private static void createPatient(String[] tokens) {
-        // create_patient <username> <password>
-        // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Create patient failed");
-            return;
+    // Runs every line of in without prompts, output is only flushed when the buffer fills up or at the end.
+    // Consecutive GROUPABLE commands share a connection and a transaction, at most groupSize of them, so
+    // loading a thousand caregivers costs one commit instead of a thousand. Any other command commits the
+    // group first. If the commit fails, the whole group is rolled back and reported, and the availability
+    // index and vaccine cache are reloaded since they already saw its writes. On a sharded database
+    // upload_availability writes to a shard and is not groupable: it ends the group like any other
+    // command and commits on its own.
+    static void runBatch(Session session, BufferedReader in, int groupSize) throws IOException {
+        int grouped = 0;
+        String line;
+        try {
+            while ((line = in.readLine()) != null) {
+                String operation = line.split(" ")[0];
+                if (!isGroupable(operation) || grouped >= groupSize) {
+                    endGroup(session, grouped);
+                    grouped = 0;
+                }
+                if (isGroupable(operation) && groupSize > 1) {
+                    if (grouped == 0) {
+                        try {
+                            ConnectionManager.beginBatch();
+                        } catch (SQLException e) {
+                            // run the command on its own then
+                            session.println("Error occurred when starting batch transaction");
+                        }
+                    }
+                    grouped++;
+                }
+                if (!execute(session, line)) {
+                    return;
+                }
+            }
+        } finally {
+            endGroup(session, grouped);
         }
-        String username = tokens[1];
-        String password = tokens[2];
-        // check 2: check if the username has been taken already
-        if (usernameExistsPatient(username)) {
-            System.out.println("Username taken, try again");
+    }
+
+    private static boolean isGroupable(String operation) {
+        return GROUPABLE.contains(operation) && !(ShardRouter.isSharded() && SHARD_WRITES.contains(operation));
+    }
+
+    private static void endGroup(Session session, int grouped) {
+        if (!ConnectionManager.isBatching()) {
             return;
         }
-        byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
-        // create the patient
         try {
-            Patient patient = new Patient.PatientBuilder(username, salt, hash).build();
-            // save to caregiver information to our database
-            patient.saveToDB();
-            System.out.println("Created user " + username);
+            ConnectionManager.endBatch(true);
+        } catch (SQLException e) {
+            session.println("Batch commit failed, the last " + grouped + " command(s) were rolled back: "
+                    + e.getMessage());
+            VaccineRepository.getInstance().clear();
+            loadAvailabilityIndex();
+        }
+    }
+
+    // MetricsFile=/path/scheduler.prom writes every metric there in the Prometheus text format
+    static void startMetricsDump() {
+        String file = Settings.get("MetricsFile", null);
+        if (file != null) {
+            Metrics.getInstance().startDump(Path.of(file), Settings.getLong("MetricsDumpS", 15));
+        }
+    }
+
+    // databases created from an older create script get the indexes and tables added since
+    static void migrateSchema() {
+        try {
+            int applied = SchemaMigrator.migrate();
+            if (applied > 0) {
+                System.out.println("Applied " + applied + " schema migration(s)");
+            }
         } catch (SQLException e) {
-            System.out.println("Create patient failed");
+            System.out.println("Could not migrate the database schema: " + e.getMessage());
         }
     }
 
-    private static boolean usernameExistsPatient(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    // search_caregiver_schedule reads from the index once it is loaded and from the database until then
+    static void loadAvailabilityIndex() {
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        if (!index.isEnabled()) {
+            return;
+        }
+        try {
+            index.load();
+        } catch (SQLException e) {
+            System.out.println("Could not load availability index, searching the database instead");
+        }
+    }
 
-        String selectUsername = "SELECT * FROM Patients WHERE Name = ?";
+    // without the registries every create_patient and create_caregiver asks the database
+    static void loadUsernameRegistries() {
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            return resultSet.isBeforeFirst();
+            UsernameRegistry.patients().load();
+            UsernameRegistry.caregivers().load();
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking name");
+            System.out.println("Could not load usernames, checking the database instead");
+        }
+    }
+
+    static void printGreeting(Session session) {
+        // printing greetings text
+        session.println();
+        session.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+        session.println("*** Please enter one of the following commands ***");
+        session.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
+        session.println("> create_caregiver <username> <password>");
+        session.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
+        session.println("> login_caregiver <username> <password>");
+        session.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
+        session.println("> reserve <date> <vaccine> [hour]");  // TODO: implement reserve (Part 2)
+        session.println("> reserve_series <start-date> <vaccine> <doses> <interval-days> [hour]");
+        session.println("> join_waitlist <date> <vaccine>");
+        session.println("> leave_waitlist <date> <vaccine>");
+        session.println("> upload_availability <date> [hours]");
+        session.println("> upload_availability_range <start> <end> [weekday-mask] [hours]");
+        session.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
+        session.println("> add_doses <vaccine> <number>");
+        session.println("> import <csv-file> [error-file]");
+        session.println("> show_appointments [archive] [<start> <end>] [<page-size>]");  // TODO: implement show_appointments (Part 2)
+        session.println("> archive [<before-date>]");
+        session.println("> stats");
+        session.println("> logout");  // TODO: implement logout (Part 2)
+        session.println("> quit");
+        session.println();
+    }
+
+    // Runs one command line for the session, returns false once the session should end.
+    // Shared by the stdin loop and SchedulerServer.
+    public static boolean execute(Session session, String response) {
+        // end of input is the same as quitting
+        if (response == null) {
+            return false;
+        }
+        // split the user input by spaces
+        String[] tokens = response.split(" ");
+        // check if input exists
+        if (tokens.length == 0) {
+            session.println("Please try again!");
+            return true;
+        }
+        // determine which operation to perform
+        String operation = tokens[0];
+        long start = System.nanoTime();
+        try {
+            return dispatch(session, operation, tokens);
         } finally {
-            cm.closeConnection();
+            commandLatency.computeIfAbsent(COMMANDS.contains(operation) ? operation : "invalid",
+                    command -> Metrics.getInstance().histogram("command_latency_seconds",
+                            "Time taken to run a command", "command", command))
+                    .record(System.nanoTime() - start);
+        }
+    }
+
+    private static boolean dispatch(Session session, String operation, String[] tokens) {
+        if (operation.equals("create_patient")) {
+            createPatient(session, tokens);
+        } else if (operation.equals("create_caregiver")) {
+            createCaregiver(session, tokens);
+        } else if (operation.equals("login_patient")) {
+            loginPatient(session, tokens);
+        } else if (operation.equals("login_caregiver")) {
+            loginCaregiver(session, tokens);
+        } else if (operation.equals("search_caregiver_schedule")) {
+            searchCaregiverSchedule(session, tokens);
+        } else if (operation.equals("reserve")) {
+            reserve(session, tokens);
+        } else if (operation.equals("reserve_series")) {
+            reserveSeries(session, tokens);
+        } else if (operation.equals("join_waitlist")) {
+            joinWaitlist(session, tokens);
+        } else if (operation.equals("leave_waitlist")) {
+            leaveWaitlist(session, tokens);
+        } else if (operation.equals("upload_availability")) {
+            uploadAvailability(session, tokens);
+        } else if (operation.equals("upload_availability_range")) {
+            uploadAvailabilityRange(session, tokens);
+        } else if (operation.equals("cancel")) {
+            cancel(session, tokens);
+        } else if (operation.equals("add_doses")) {
+            addDoses(session, tokens);
+        } else if (operation.equals("import")) {
+            importFile(session, tokens);
+        } else if (operation.equals("show_appointments")) {
+            showAppointments(session, tokens);
+        } else if (operation.equals("archive")) {
+            archive(session, tokens);
+        } else if (operation.equals("stats")) {
+            stats(session, tokens);
+        } else if (operation.equals("logout")) {
+            logout(session, tokens);
+        } else if (operation.equals("quit")) {
+            session.println("Bye!");
+            return false;
+        } else {
+            session.println("Invalid operation name!");
         }
         return true;
     }
 
-    private static void createCaregiver(String[] tokens) {
-        // create_caregiver <username> <password>
+    static void createPatient(Session session, String[] tokens) {
+        // create_patient <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            session.println("Create patient failed");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
-        // check 2: check if the username has been taken already
-        if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again");
-            return;
-        }
-        byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
-        // create the caregiver
+        // check 2: the service checks if the username has been taken already before creating the patient
         try {
-            Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build(); 
-            // save to caregiver information to our database
-            caregiver.saveToDB();
-            System.out.println("Created user " + username);
+            Registration registration = await(service.createPatient(username, password));
+            if (registration.isCreated()) {
+                session.println("Created user " + username);
+            } else {
+                session.println("Username taken, try again");
+            }
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
+            session.println("Create patient failed");
         }
     }
 
-    private static boolean usernameExistsCaregiver(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
+    static void createCaregiver(Session session, String[] tokens) {
+        // create_caregiver <username> <password>
+        // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
+        if (tokens.length != 3) {
+            session.println("Failed to create user.");
+            return;
+        }
+        String username = tokens[1];
+        String password = tokens[2];
+        // check 2: the service checks if the username has been taken already before creating the caregiver
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            Registration registration = await(service.createCaregiver(username, password));
+            if (registration.isCreated()) {
+                session.println("Created user " + username);
+            } else {
+                session.println("Username taken, try again");
+            }
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
-        } finally {
-            cm.closeConnection();
+            session.println("Failed to create user.");
         }
-        return true;
     }
 
-    private static void loginPatient(String[] tokens) {
+    static void loginPatient(Session session, String[] tokens) {
         // login_patient <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in, try again");
+        if (session.isLoggedIn()) {
+            session.println("User already logged in, try again");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login patient failed");
+            session.println("Login patient failed");
             return;
         }
         String username = tokens[1];
@@ -200,29 +398,29 @@ public class Scheduler {
 
         Patient patient = null;
         try {
-            patient = new Patient.PatientGetter(username, password).get();
+            patient = await(service.loginPatient(username, password)).orElse(null);
         } catch (SQLException e) {
-            System.out.println("Login patient failed");
+            session.println("Login patient failed");
         }
         // check if the login was successful
         if (patient == null) {
-            System.out.println("Login patient failed");
+            session.println("Login patient failed");
         } else {
-            System.out.println("Logged in as " + username);
-            currentPatient = patient;
+            session.println("Logged in as " + username);
+            session.setCurrentPatient(patient);
         }
     }
 
-    private static void loginCaregiver(String[] tokens) {
+    static void loginCaregiver(Session session, String[] tokens) {
         // login_caregiver <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+        if (session.isLoggedIn()) {
+            session.println("User already logged in.");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            session.println("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -230,27 +428,27 @@ public class Scheduler {
 
         Caregiver caregiver = null;
         try {
-            caregiver = new Caregiver.CaregiverGetter(username, password).get();
+            caregiver = await(service.loginCaregiver(username, password)).orElse(null);
         } catch (SQLException e) {
-            System.out.println("Login failed.");
+            session.println("Login failed.");
         }
         // check if the login was successful
         if (caregiver == null) {
-            System.out.println("Login failed.");
+            session.println("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
-            currentCaregiver = caregiver;
+            session.println("Logged in as: " + username);
+            session.setCurrentCaregiver(caregiver);
         }
     }
 
-    private static void searchCaregiverSchedule(String[] tokens) {
+    static void searchCaregiverSchedule(Session session, String[] tokens) {
         // part 2
         // checks if no user is logged in yet and if there are any other errors
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first");
+        if (!session.isLoggedIn()) {
+            session.println("Please login first");
             return;
         } else if (tokens.length != 2) {
-            System.out.println("Please try again");
+            session.println("Please try again");
             return;
         }
 
@@ -260,402 +458,520 @@ public class Scheduler {
         try {
             d = Date.valueOf(date);
         } catch (IllegalArgumentException e) {
-            System.out.println("Please try again");
+            session.println("Please try again");
             return;
         }
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        // get caregivers
-        String checkSched = "SELECT C.Username FROM Caregivers C, Availabilities A WHERE A.Username = C.Username AND Time = ? ORDER BY C.Username";
+        Schedule schedule;
         try {
-            PreparedStatement statement = con.prepareStatement(checkSched);
-            statement.setDate(1, d);
-            ResultSet resultSet = statement.executeQuery();
-
-            System.out.println("Caregivers:");
-            boolean foundCaregiver = false;
-
-            while (resultSet.next()) {
-                foundCaregiver = true;
-                System.out.println(resultSet.getString("Username"));
-            }
-
-            if (!foundCaregiver) {
-                System.out.println("No caregivers available");
-            }
-
-        } catch (IllegalArgumentException e) {
-            System.out.println("Please try again");
+            schedule = await(service.searchSchedule(d));
         } catch (SQLException e) {
-            System.out.println("Error occurred when searching for caregiver");
+            session.println("Error occurred when searching for caregiver");
+            return;
         }
 
-        // get vaccines
-        String checkVaccine = "SELECT * FROM Vaccines V ORDER BY V.Name";
-        try {
-            PreparedStatement statement = con.prepareStatement(checkVaccine);
-            ResultSet resultSet = statement.executeQuery();
-
-            System.out.println("Vaccines:");
-            boolean foundVaccine = false;
-
-            while (resultSet.next()) {
-                foundVaccine = true;
-                String vaccine = resultSet.getString("Name");
-                int numOfVaccine = resultSet.getInt("Doses");
-                System.out.println(vaccine + " " + numOfVaccine);
-            }
-
-            if (!foundVaccine) {
-                System.out.println("No vaccines available");
-            }
+        session.println("Caregivers:");
+        for (Map.Entry<String, Long> caregiver : schedule.getSlots().entrySet()) {
+            session.println(caregiver.getKey() + " " + TimeSlots.format(caregiver.getValue()));
+        }
+        if (schedule.getSlots().isEmpty()) {
+            session.println("No caregivers available");
+        }
 
-        } catch (IllegalArgumentException e) {
-            System.out.println("Please try again");
-        } catch (SQLException e) {
-            System.out.println("Error occurred when searching for vaccine");
-        } finally {
-            cm.closeConnection();
+        session.println("Vaccines:");
+        for (Map.Entry<String, Integer> vaccine : schedule.getDoses().entrySet()) {
+            session.println(vaccine.getKey() + " " + vaccine.getValue());
+        }
+        if (schedule.getDoses().isEmpty()) {
+            session.println("No vaccines available");
         }
     }
 
-    private static void reserve(String[] tokens) {
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first");
+    static void reserve(Session session, String[] tokens) {
+        if (!session.isLoggedIn()) {
+            session.println("Please login first");
             return;
-        } else if (currentCaregiver != null) {
-            System.out.println("Please login as a patient");
+        } else if (session.getCurrentCaregiver() != null) {
+            session.println("Please login as a patient");
             return;
-        } else if (tokens.length != 3) {
-            System.out.println("Please try again");
+        } else if (tokens.length != 3 && tokens.length != 4) {
+            session.println("Please try again");
             return;
         }
 
-        // check valid date
+        // check valid date and hour, without one the earliest free hour is taken
         String date = tokens[1];
         String vaccine = tokens[2];
         Date d = null;
+        int hour = TimeSlots.ANY_HOUR;
 
         try {
             d = Date.valueOf(date);
+            if (tokens.length == 4) {
+                hour = TimeSlots.parseHour(tokens[3]);
+            }
         } catch (IllegalArgumentException e) {
-            System.out.println("Please try again");
+            session.println("Please try again");
             return;
         }
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String checkVaccine = "SELECT V.Doses FROM Vaccines V WHERE V.Name = ?";
-        int doses = 0;
+        Reservation reservation = null;
         try {
-            PreparedStatement statement = con.prepareStatement(checkVaccine);
-            statement.setString(1, vaccine);
-            ResultSet resultSet = statement.executeQuery();
+            reservation = await(service.reserve(session.getCurrentPatient().getUsername(), d, hour, vaccine));
+        } catch (SQLException e) {
+            session.println("Error occurred when reserving appointment");
+            return;
+        }
 
-            if (!resultSet.next() || resultSet.getInt("Doses") <= 0) {
-                System.out.println("Not enough available doses");
-                return;
-            }
-            doses = resultSet.getInt("Doses");
+        if (reservation.getStatus() == Reservation.Status.NO_DOSES) {
+            session.println("Not enough available doses");
+        } else if (reservation.getStatus() == Reservation.Status.NO_CAREGIVER) {
+            session.println("No caregiver is available");
+        } else {
+            session.println("Appointment ID " + reservation.getAppointmentId() + ", Caregiver username " +
+                               reservation.getCaregiverName() + ", Time " + TimeSlots.formatHour(reservation.getHour()));
+        }
+    }
 
-        } catch (IllegalArgumentException e) {
-            System.out.println("Please try again");
-        } catch (SQLException e) {
-            System.out.println("Error occurred when searching for vaccine");
+    static void reserveSeries(Session session, String[] tokens) {
+        // reserve_series <start-date> <vaccine> <doses> <interval-days> [hour]
+        // books every dose of the series or, if any of them can't be booked, none
+        if (!session.isLoggedIn()) {
+            session.println("Please login first");
+            return;
+        } else if (session.getCurrentCaregiver() != null) {
+            session.println("Please login as a patient");
+            return;
+        } else if (tokens.length != 5 && tokens.length != 6) {
+            session.println("Please try again");
+            return;
         }
 
-        String checkCaregiver = "SELECT A.Username FROM Availabilities A WHERE Time = ? ORDER BY A.Username";
-        String caregiver = null;
+        Date start;
+        int doses;
+        int intervalDays;
+        int hour = TimeSlots.ANY_HOUR;
         try {
-            PreparedStatement statement = con.prepareStatement(checkCaregiver);
-            statement.setDate(1, d);
-            ResultSet resultSet = statement.executeQuery();
-
-            if(!resultSet.next()) {
-                System.out.println("No caregiver is available");
-                return;
+            start = Date.valueOf(tokens[1]);
+            doses = Integer.parseInt(tokens[3]);
+            intervalDays = Integer.parseInt(tokens[4]);
+            if (tokens.length == 6) {
+                hour = TimeSlots.parseHour(tokens[5]);
             }
-
-            caregiver = resultSet.getString("Username");
         } catch (IllegalArgumentException e) {
-            System.out.println("Please try again");
-        } catch (SQLException e) {
-            System.out.println("Error occurred when searching for caregiver");
+            session.println("Please try again");
+            return;
+        }
+        if (doses <= 0 || doses > SchedulerService.MAX_SERIES_DOSES || intervalDays <= 0) {
+            session.println("Please try again");
+            return;
         }
 
-        String getAppointment = "SELECT MAX(aid) AS max FROM Appointments";
-        int newAppointmentID = 1;
+        SeriesReservation series;
         try {
-            PreparedStatement statement = con.prepareStatement(getAppointment);
-            ResultSet resultSet = statement.executeQuery();
+            series = await(service.reserveSeries(session.getCurrentPatient().getUsername(), start, hour,
+                    tokens[2], doses, intervalDays));
+        } catch (SQLException e) {
+            session.println("Error occurred when reserving appointment");
+            return;
+        }
 
-            if (resultSet.next()) {
-               newAppointmentID = resultSet.getInt("max") + 1;
+        if (series.getStatus() == Reservation.Status.NO_DOSES) {
+            session.println("Not enough available doses");
+        } else if (series.getStatus() == Reservation.Status.NO_CAREGIVER) {
+            session.println("No caregiver is available on " + series.getFailedDate());
+        } else {
+            for (Reservation reservation : series.getAppointments()) {
+                session.println("Appointment ID " + reservation.getAppointmentId() + ", Caregiver username " +
+                        reservation.getCaregiverName() + ", Date " + reservation.getDate() + ", Time " +
+                        TimeSlots.formatHour(reservation.getHour()));
             }
-        } catch (IllegalArgumentException e) {
-            System.out.println("Please try again");
-        } catch (SQLException e) {
-            System.out.println("Error occurred when searching for appointment id");
         }
+    }
 
-        String insertAppointment = "INSERT INTO Appointments VALUES (?, ?, ?, ?, ?)";
+    static void joinWaitlist(Session session, String[] tokens) {
+        // join_waitlist <date> <vaccine>
+        // the patient is booked automatically, first come first served, once a slot and a dose free up
+        if (session.getCurrentPatient() == null) {
+            session.println("Please login as a patient");
+            return;
+        }
+        if (tokens.length != 3) {
+            session.println("Please try again!");
+            return;
+        }
+        Date d;
         try {
-            PreparedStatement statement = con.prepareStatement(insertAppointment);
-            statement.setInt(1, newAppointmentID);
-            statement.setString(2, vaccine);
-            statement.setString(3, currentPatient.getUsername());
-            statement.setString(4, caregiver);
-            statement.setDate(5, d);
-            statement.executeUpdate();
+            d = Date.valueOf(tokens[1]);
         } catch (IllegalArgumentException e) {
-            System.out.println("Please try again");
-        } catch (SQLException e) {
-            System.out.println("Error occurred when updating appointments");
+            session.println("Please enter a valid date!");
+            return;
         }
-
-        String deleteAvailability = "DELETE FROM Availabilities WHERE Username = ? AND Time = ?";
         try {
-            PreparedStatement statement = con.prepareStatement(deleteAvailability);
-            statement.setString(1, caregiver);
-            statement.setDate(2, d);
-            statement.executeUpdate();
+            int place = await(service.joinWaitlist(session.getCurrentPatient().getUsername(), d, tokens[2]));
+            session.println("You are number " + place + " on the waitlist for " + tokens[2] + " on " + d
+                    + ", check show_appointments for your booking");
         } catch (IllegalArgumentException e) {
-            System.out.println("Please try again");
+            session.println(e.getMessage());
         } catch (SQLException e) {
-            System.out.println("Error occurred when updating availabilities");
-        } finally {
-            cm.closeConnection();
+            session.println("Error occurred when joining the waitlist");
         }
+    }
 
-        Vaccine updateDoses = null;
+    static void leaveWaitlist(Session session, String[] tokens) {
+        // leave_waitlist <date> <vaccine>
+        if (session.getCurrentPatient() == null) {
+            session.println("Please login as a patient");
+            return;
+        }
+        if (tokens.length != 3) {
+            session.println("Please try again!");
+            return;
+        }
         try {
-            updateDoses = new Vaccine.VaccineGetter(vaccine).get();
-            updateDoses.decreaseAvailableDoses(1);
+            Date d = Date.valueOf(tokens[1]);
+            if (await(service.leaveWaitlist(session.getCurrentPatient().getUsername(), d, tokens[2]))) {
+                session.println("Left the waitlist for " + tokens[2] + " on " + d);
+            } else {
+                session.println("You are not on the waitlist for " + tokens[2] + " on " + d);
+            }
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when updating vaccine");
+            session.println("Error occurred when leaving the waitlist");
         }
-
-        System.out.println("Appointment ID " + newAppointmentID + ", Caregiver username " + caregiver);
     }
 
-    private static void uploadAvailability(String[] tokens) {
-        // upload_availability <date>
+    static void uploadAvailability(Session session, String[] tokens) {
+        // upload_availability <date> [hours]
+        // hours are ranges like 09-12,13-17, the clinic's hours (ClinicHours) if there are none
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be 2 or 3 to include all information (with the operation name)
+        if (tokens.length != 2 && tokens.length != 3) {
+            session.println("Please try again!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+        long slots;
+        try {
+            slots = tokens.length == 3 ? TimeSlots.parse(tokens[2]) : TimeSlots.clinicDay();
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter valid hours!");
             return;
         }
         String date = tokens[1];
         try {
             Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            await(service.uploadAvailability(session.getCurrentCaregiver(), d, slots));
+            session.println("Availability uploaded!");
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            session.println("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
+            session.println("Error occurred when uploading availability");
         }
     }
 
-    private static void cancel(String[] tokens) {
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first");
+    static void uploadAvailabilityRange(Session session, String[] tokens) {
+        // upload_availability_range <start> <end> [weekday-mask] [hours]
+        // the mask has one 0/1 per weekday starting on Monday, e.g. 1111100 for weekdays only, and the
+        // hours are the same for every date
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
             return;
-        } else if (tokens.length != 2) {
-            System.out.println("Please try again");
+        }
+        if (tokens.length < 3 || tokens.length > 5) {
+            session.println("Please try again!");
             return;
         }
-
-        int appointmentId = Integer.parseInt(tokens[1]);
-
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
+        // a mask is seven 0s and 1s, anything else after the dates is hours
+        int next = 3;
+        String mask = "1111111";
+        if (tokens.length > next && tokens[next].matches("[01]{7}")) {
+            mask = tokens[next++];
+        }
+        long slots = TimeSlots.clinicDay();
         try {
-            String getAppointment = "SELECT vaccine_name, patient_name, caregiver_name, Time FROM Appointments WHERE aid = ?";
-            PreparedStatement statement = con.prepareStatement(getAppointment);
-            statement.setInt(1, appointmentId);
-            ResultSet resultSet = statement.executeQuery();
-
-            if (!resultSet.next()) {
-                System.out.println("Appointment ID " + appointmentId + " does not exist");
-                return;
+            if (tokens.length > next) {
+                slots = TimeSlots.parse(tokens[next++]);
             }
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid weekday mask or valid hours!");
+            return;
+        }
+        if (next != tokens.length) {
+            session.println("Please try again!");
+            return;
+        }
+        LocalDate start;
+        LocalDate end;
+        try {
+            start = Date.valueOf(tokens[1]).toLocalDate();
+            end = Date.valueOf(tokens[2]).toLocalDate();
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid date!");
+            return;
+        }
+        if (end.isBefore(start) || ChronoUnit.DAYS.between(start, end) >= MAX_UPLOAD_RANGE_DAYS) {
+            session.println("Please enter a range of at most " + MAX_UPLOAD_RANGE_DAYS + " days!");
+            return;
+        }
 
-            String vaccineName = resultSet.getString("vaccine_name");
-            String patientName = resultSet.getString("patient_name");
-            String caregiverName = resultSet.getString("caregiver_name");
-            Date appointmentDate = resultSet.getDate("Time");
-
-            if ((currentPatient != null && !currentPatient.getUsername().equals(patientName)) &&
-                    (currentCaregiver != null && !currentCaregiver.getUsername().equals(caregiverName))) {
-                System.out.println("Please try again");
-                return;
+        List<Date> dates = new ArrayList<>();
+        for (LocalDate day = start; !day.isAfter(end); day = day.plusDays(1)) {
+            if (mask.charAt(day.getDayOfWeek().getValue() - 1) == '1') {
+                dates.add(Date.valueOf(day));
             }
+        }
+        try {
+            int uploaded = await(service.uploadAvailability(session.getCurrentCaregiver(), dates, slots));
+            session.println("Availability uploaded for " + uploaded + " of " + dates.size() + " dates!");
+        } catch (SQLException e) {
+            session.println("Error occurred when uploading availability");
+        }
+    }
 
-            String deleteAppointment = "DELETE FROM Appointments WHERE aid = ?";
-            PreparedStatement deleteStatement = con.prepareStatement(deleteAppointment);
-            deleteStatement.setInt(1, appointmentId);
-            deleteStatement.executeUpdate();
-
-            String updateVaccine = "UPDATE Vaccines SET Doses = Doses + 1 WHERE Name = ?";
-            PreparedStatement updateVaccineStatement = con.prepareStatement(updateVaccine);
-            updateVaccineStatement.setString(1, vaccineName);
-            updateVaccineStatement.executeUpdate();
-
-            String checkAvailability = "SELECT COUNT(*) FROM Availabilities WHERE Time = ? AND Username = ?";
-            PreparedStatement checkAvailabilityStatement = con.prepareStatement(checkAvailability);
-            checkAvailabilityStatement.setDate(1, appointmentDate);
-            checkAvailabilityStatement.setString(2, caregiverName);
-            ResultSet availabilityResultSet = checkAvailabilityStatement.executeQuery();
-
-            if (availabilityResultSet.next() && availabilityResultSet.getInt(1) == 0) {
-                String addAvailability = "INSERT INTO Availabilities (Time, Username) VALUES (?, ?)";
-                PreparedStatement addAvailabilityStmt = con.prepareStatement(addAvailability);
-                addAvailabilityStmt.setDate(1, appointmentDate);
-                addAvailabilityStmt.setString(2, caregiverName);
-                addAvailabilityStmt.executeUpdate();
-            }
+    static void cancel(Session session, String[] tokens) {
+        if (!session.isLoggedIn()) {
+            session.println("Please login first");
+            return;
+        } else if (tokens.length != 2) {
+            session.println("Please try again");
+            return;
+        }
 
-            System.out.println("Appointment ID " + appointmentId + " has been successfully canceled");
+        long appointmentId;
+        try {
+            appointmentId = Long.parseLong(tokens[1]);
+        } catch (NumberFormatException e) {
+            session.println("Please try again");
+            return;
+        }
+        String username = session.getCurrentPatient() != null ? session.getCurrentPatient().getUsername()
+                : session.getCurrentCaregiver().getUsername();
 
+        Cancellation cancellation = null;
+        try {
+            cancellation = await(service.cancel(appointmentId, username));
         } catch (SQLException e) {
-            System.out.println("Please try again");
-        } finally {
-            cm.closeConnection();
+            session.println("Please try again");
+            return;
         }
-    }
-
 
+        if (cancellation.getStatus() == Cancellation.Status.NOT_FOUND) {
+            session.println("Appointment ID " + appointmentId + " does not exist");
+        } else if (cancellation.getStatus() == Cancellation.Status.NOT_ALLOWED) {
+            session.println("Please try again");
+        } else {
+            session.println("Appointment ID " + appointmentId + " has been successfully canceled");
+        }
+    }
 
-    private static void addDoses(String[] tokens) {
+    static void addDoses(Session session, String[] tokens) {
         // add_doses <vaccine> <number>
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            session.println("Please try again!");
             return;
         }
         String vaccineName = tokens[1];
-        int doses = Integer.parseInt(tokens[2]);
-        Vaccine vaccine = null;
         try {
-            vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+            int doses = Integer.parseInt(tokens[2]);
+            // check 3: the service creates the vaccine if it is not in the Vaccines table yet
+            await(service.addDoses(vaccineName, doses));
+            session.println("Doses updated!");
+        } catch (IllegalArgumentException e) {
+            session.println("Please try again!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
+            session.println("Error occurred when adding doses");
         }
-        // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
-        //          table
-        if (vaccine == null) {
-            try {
-                vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
-                vaccine.saveToDB();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-            }
-        } else {
-            // if the vaccine is not null, meaning that the vaccine already exists in our table
-            try {
-                vaccine.increaseAvailableDoses(doses);
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-            }
-        }
-        System.out.println("Doses updated!");
     }
 
-    private static void showAppointments(String[] tokens) {
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first");
+    static void importFile(Session session, String[] tokens) {
+        // import <csv-file> [error-file]
+        // bulk onboarding of patients, caregivers and vaccine doses, see BulkImporter for the format;
+        // both files are in the import directory (ImportDir), and only the console may import
+        if (session.isRemote()) {
+            session.println("Import is only available from the console");
             return;
-        } else if (tokens.length != 1){
-            System.out.println("Please try again");
+        }
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
             return;
         }
+        if (tokens.length != 2 && tokens.length != 3) {
+            session.println("Please try again!");
+            return;
+        }
+        try {
+            BulkImporter importer = BulkImporter.getDefault(session.getOut());
+            ImportResult result = importer.importFile(tokens[1], tokens.length == 3 ? tokens[2] : null);
+            session.println(result);
+            if (result.getFailed() > 0) {
+                session.println("Failed rows written to " + result.getErrorFile());
+            }
+        } catch (NoSuchFileException e) {
+            session.println("File not found: " + e.getMessage());
+        } catch (FileAlreadyExistsException e) {
+            session.println("Error file already exists: " + e.getMessage());
+        } catch (IOException e) {
+            session.println("Error occurred when importing: " + e.getMessage());
+        }
+    }
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        if (currentCaregiver != null) {
-            String apptInfo = "SELECT aid, vaccine_name, Time, patient_name FROM Appointments WHERE caregiver_name = ? ORDER BY aid";
-            try {
-                PreparedStatement statement = con.prepareStatement(apptInfo);
-                statement.setString(1, currentCaregiver.getUsername());
-                ResultSet resultSet = statement.executeQuery();
-
-                boolean hasAppointment = false;
+    static void showAppointments(Session session, String[] tokens) {
+        // show_appointments [archive] [<start> <end>] [<page-size>], then show_appointments next for the next page
+        if (!session.isLoggedIn()) {
+            session.println("Please login first");
+            return;
+        }
+        // archive pages through the appointments the archive job moved out
+        boolean archived = tokens.length > 1 && tokens[1].equals("archive");
+        if (archived) {
+            String[] rest = new String[tokens.length - 1];
+            rest[0] = tokens[0];
+            System.arraycopy(tokens, 2, rest, 1, tokens.length - 2);
+            tokens = rest;
+        }
 
-                while(resultSet.next()) {
-                    hasAppointment = true;
-                    String toPrint = resultSet.getInt(1) + " " + resultSet.getString(2) + " " +
-                                     resultSet.getDate(3) + " " + resultSet.getString(4);
-                    System.out.println(toPrint);
+        AppointmentCursor cursor;
+        try {
+            if (tokens.length == 2 && tokens[1].equals("next")) {
+                cursor = session.getAppointmentCursor();
+                if (cursor == null) {
+                    session.println("No more appointments");
+                    return;
                 }
-
-                if (!hasAppointment) {
-                    System.out.println("No appointments scheduled");
+            } else if (tokens.length <= 4) {
+                Date start = null;
+                Date end = null;
+                if (tokens.length >= 3) {
+                    start = Date.valueOf(tokens[1]);
+                    end = Date.valueOf(tokens[2]);
                 }
-
-                cm.closeConnection();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when getting caregiver information");
+                int pageSize = Settings.getInt("AppointmentsPageSize", 0);
+                if (tokens.length == 2 || tokens.length == 4) {
+                    pageSize = Integer.parseInt(tokens[tokens.length - 1]);
+                }
+                if (pageSize < 0) {
+                    throw new IllegalArgumentException();
+                }
+                cursor = new AppointmentCursor(start, end, pageSize, 0, archived);
+            } else {
+                throw new IllegalArgumentException();
             }
-        } else {
-            String apptInfo = "SELECT aid, vaccine_name, Time, caregiver_name FROM Appointments WHERE patient_name = ? ORDER BY aid";
-            try {
-                PreparedStatement statement = con.prepareStatement(apptInfo);
-                statement.setString(1, currentPatient.getUsername());
-                ResultSet resultSet = statement.executeQuery();
-
-                boolean hasAppointment = false;
+        } catch (IllegalArgumentException e) {
+            session.println("Please try again");
+            return;
+        }
+        session.setAppointmentCursor(null);
 
-                while(resultSet.next()) {
-                    hasAppointment = true;
-                    String toPrint = resultSet.getInt(1) + " " + resultSet.getString(2) + " " +
-                                     resultSet.getDate(3) + " " + resultSet.getString(4);
-                    System.out.println(toPrint);
-                }
+        boolean isCaregiver = session.getCurrentCaregiver() != null;
+        String username = isCaregiver ? session.getCurrentCaregiver().getUsername()
+                : session.getCurrentPatient().getUsername();
+        AppointmentPage page;
+        try {
+            page = await(service.showAppointments(username, isCaregiver, cursor.getStart(), cursor.getEnd(),
+                    cursor.getPageSize(), cursor.getAfterAid(), cursor.isArchived()));
+        } catch (SQLException e) {
+            session.println(isCaregiver ? "Error occurred when getting caregiver information"
+                    : "Error occurred when getting patient information");
+            return;
+        }
 
-                if (!hasAppointment) {
-                    System.out.println("No appointments scheduled");
-                }
+        for (Appointment appointment : page.getAppointments()) {
+            session.println(appointment);
+        }
+        if (page.getAppointments().isEmpty()) {
+            session.println(cursor.getAfterAid() == 0 ? "No appointments scheduled" : "No more appointments");
+        } else if (page.hasMore()) {
+            session.setAppointmentCursor(cursor.after(page.getLastAppointmentId()));
+            session.println("Enter show_appointments next for more");
+        }
+    }
 
-                cm.closeConnection();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when getting patient information");
+    // The console runs one command at a time, so it waits for the service's result. Failures are
+    // rethrown as the service threw them.
+    private static <T> T await(CompletableFuture<T> result) throws SQLException {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw e;
         }
+    }
 
+    static void archive(Session session, String[] tokens) {
+        // archive [<before-date>]
+        // moves appointments and availabilities dated before the date (ArchiveAfterDays ago by default,
+        // and never later) into the archive tables; only caregivers named in ArchiveAdmins may
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        if (!ARCHIVE_ADMINS.contains(session.getCurrentCaregiver().getUsername())) {
+            session.println("Only an administrator can archive!");
+            return;
+        }
+        if (tokens.length > 2) {
+            session.println("Please try again!");
+            return;
+        }
+        Date cutoff = null;
+        try {
+            cutoff = tokens.length == 2 ? Date.valueOf(tokens[1]) : null;
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid date!");
+            return;
+        }
+        try {
+            session.println(await(service.archive(cutoff)));
+        } catch (IllegalArgumentException e) {
+            session.println(e.getMessage());
+        } catch (SQLException e) {
+            session.println("Error occurred when archiving: " + e.getMessage());
+        }
     }
 
-    private static void logout(String[] tokens) {
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first");
+    static void stats(Session session, String[] tokens) {
+        // stats
+        if (tokens.length != 1) {
+            session.println("Please try again!");
             return;
-        } else if (tokens.length != 1) {
-            System.out.println("Please try again");
+        }
+        List<String> lines = Metrics.getInstance().summary();
+        if (lines.isEmpty()) {
+            session.println("No metrics recorded yet");
             return;
         }
+        for (String line : lines) {
+            session.println(line);
+        }
+    }
 
-        if(currentCaregiver != null) {
-            currentCaregiver = null;
-        } else {
-            currentPatient = null;
+    static void logout(Session session, String[] tokens) {
+        if (!session.isLoggedIn()) {
+            session.println("Please login first");
+            return;
+        } else if (tokens.length != 1) {
+            session.println("Please try again");
+            return;
         }
 
-        System.out.println("Successfully logged out");
+        session.logout();
+
+        session.println("Successfully logged out");
 
     }
 }
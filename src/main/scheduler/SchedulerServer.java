@@ -0,0 +1,80 @@
+package scheduler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Serves the scheduler's line protocol on a loopback socket: every connection gets its own Session
+// and sends the same commands, one per line, that the stdin loop accepts
+public class SchedulerServer {
+
+    private final int port;
+    private final ExecutorService sessions = newSessionExecutor();
+    private final AtomicInteger openSessions = new AtomicInteger();
+
+    public SchedulerServer(int port) {
+        this.port = port;
+    }
+
+    public int getOpenSessions() {
+        return openSessions.get();
+    }
+
+    public void serve() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress())) {
+            System.out.println("Scheduler listening on " + serverSocket.getLocalSocketAddress());
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                sessions.execute(() -> handle(socket));
+            }
+        } finally {
+            sessions.shutdownNow();
+        }
+    }
+
+    private void handle(Socket socket) {
+        openSessions.incrementAndGet();
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(
+                     new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)))) {
+            Session session = new Session(out, true);
+            Scheduler.printGreeting(session);
+            boolean keepGoing = true;
+            while (keepGoing) {
+                session.print("> ");
+                session.flush();
+                keepGoing = Scheduler.execute(session, in.readLine());
+            }
+            session.flush();
+        } catch (IOException e) {
+            // the client went away, nothing to clean up beyond the socket
+        } finally {
+            openSessions.decrementAndGet();
+        }
+    }
+
+    // a virtual thread per session where the runtime has them (Java 21+): sessions spend nearly all
+    // their time blocked on the socket or the database, so they should not each pin a platform thread
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "scheduler-session");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
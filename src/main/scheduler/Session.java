@@ -0,0 +1,89 @@
+package scheduler;
+
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+
+import java.io.PrintWriter;
+
+// State of one user of the scheduler: who is logged in and where command output goes
+public class Session {
+
+    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
+    //       since only one user can be logged-in per session at a time
+    private Caregiver currentCaregiver = null;
+    private Patient currentPatient = null;
+    private final PrintWriter out;
+    // a client of SchedulerServer rather than whoever runs the process
+    private final boolean remote;
+    // set while show_appointments has more pages to show
+    private AppointmentCursor appointmentCursor = null;
+
+    public Session(PrintWriter out) {
+        this(out, false);
+    }
+
+    public Session(PrintWriter out, boolean remote) {
+        this.out = out;
+        this.remote = remote;
+    }
+
+    // Getters
+    public Caregiver getCurrentCaregiver() {
+        return currentCaregiver;
+    }
+
+    public Patient getCurrentPatient() {
+        return currentPatient;
+    }
+
+    // commands that touch the server's files are only for local sessions
+    public boolean isRemote() {
+        return remote;
+    }
+
+    public boolean isLoggedIn() {
+        return currentCaregiver != null || currentPatient != null;
+    }
+
+    public void setCurrentCaregiver(Caregiver caregiver) {
+        this.currentCaregiver = caregiver;
+    }
+
+    public void setCurrentPatient(Patient patient) {
+        this.currentPatient = patient;
+    }
+
+    AppointmentCursor getAppointmentCursor() {
+        return appointmentCursor;
+    }
+
+    void setAppointmentCursor(AppointmentCursor appointmentCursor) {
+        this.appointmentCursor = appointmentCursor;
+    }
+
+    public void logout() {
+        this.currentCaregiver = null;
+        this.currentPatient = null;
+        this.appointmentCursor = null;
+    }
+
+    public PrintWriter getOut() {
+        return out;
+    }
+
+    public void println() {
+        out.println();
+    }
+
+    public void println(Object line) {
+        out.println(line);
+    }
+
+    public void print(Object text) {
+        out.print(text);
+    }
+
+    public void flush() {
+        out.flush();
+    }
+}
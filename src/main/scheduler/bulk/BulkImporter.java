@@ -0,0 +1,316 @@
+package scheduler.bulk;
+
+import scheduler.db.AvailabilityIndex;
+import scheduler.db.UsernameRegistry;
+import scheduler.db.WriteCoordinator;
+import scheduler.model.VaccineRepository;
+import scheduler.util.PasswordHasher;
+import scheduler.util.Settings;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Streams a CSV file of users and vaccine inventory into the database.
+//
+// One row per line, blank lines and lines starting with # are skipped:
+//   patient,<username>,<password>
+//   caregiver,<username>,<password>
+//   vaccine,<name>,<doses>
+// The password is everything after the second comma, so it may contain commas itself.
+//
+// Rows are read batchSize at a time. A chunk's passwords are handed to the PasswordHasher pool as
+// soon as they are read, so they hash on every core while the chunk before is written, and each
+// chunk is written as one WriteCoordinator write of batched inserts. A taken username fails only
+// its own row.
+// Vaccine rows add their doses to an existing vaccine, like add_doses. Rows that fail are written
+// to the error file as "<line number>,<reason>,<row>".
+//
+// Files are named by whoever runs the import, so they are resolved inside importDir and may not
+// leave it, symbolic links included. The error file is always a new one: the import never
+// overwrites a file, and only deletes the error file it created when no row failed.
+public class BulkImporter {
+
+    private static final String insertPatient = "INSERT INTO Patients VALUES (?, ?, ?) ON CONFLICT DO NOTHING";
+    private static final String insertCaregiver = "INSERT INTO Caregivers VALUES (?, ?, ?) ON CONFLICT DO NOTHING";
+    private static final String upsertVaccine = "INSERT INTO Vaccines VALUES (?, ?) " +
+            "ON CONFLICT (Name) DO UPDATE SET Doses = Vaccines.Doses + excluded.Doses";
+
+    private final PasswordHasher hasher;
+    private final int batchSize;
+    private final Path importDir;
+    private final PrintWriter progress;
+
+    private long rows = 0;
+    private long imported = 0;
+    private long failed = 0;
+    private boolean vaccinesChanged = false;
+
+    // importDir must exist, progress may be null for a silent import
+    public BulkImporter(PasswordHasher hasher, int batchSize, Path importDir, PrintWriter progress)
+            throws IOException {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive!");
+        }
+        this.hasher = hasher;
+        this.batchSize = batchSize;
+        this.importDir = importDir.toRealPath();
+        this.progress = progress;
+    }
+
+    // ImportBatchSize rows per transaction, files in ImportDir (default import)
+    public static BulkImporter getDefault(PrintWriter progress) throws IOException {
+        return new BulkImporter(PasswordHasher.getDefault(), Settings.getInt("ImportBatchSize", 1000),
+                Path.of(Settings.get("ImportDir", "import")), progress);
+    }
+
+    // Imports fileName, relative to the import directory. Failed rows go to errorFileName, which
+    // must not exist yet, or to a new <fileName>.<random>.errors next to the file if it is null.
+    public ImportResult importFile(String fileName, String errorFileName) throws IOException {
+        long started = System.nanoTime();
+        rows = 0;
+        imported = 0;
+        failed = 0;
+        vaccinesChanged = false;
+
+        Path file = importDir.resolve(fileName).toRealPath();
+        if (!file.startsWith(importDir)) {
+            throw new IOException(fileName + " is not in the import directory");
+        }
+        Path errorFile;
+        if (errorFileName == null) {
+            errorFile = Files.createTempFile(file.getParent(), file.getFileName() + ".", ".errors");
+        } else {
+            errorFile = importDir.resolve(errorFileName).normalize();
+            Path parent = errorFile.getParent();
+            if (parent == null || !parent.toRealPath().startsWith(importDir)) {
+                throw new IOException(errorFileName + " is not in the import directory");
+            }
+            errorFile = Files.createFile(parent.toRealPath().resolve(errorFile.getFileName()));
+        }
+
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             BufferedWriter errors = Files.newBufferedWriter(errorFile, StandardCharsets.UTF_8,
+                     StandardOpenOption.WRITE)) {
+            List<Row> pending = null;
+            List<Row> chunk = new ArrayList<>(batchSize);
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                chunk.add(parse(lineNumber, line));
+                if (chunk.size() == batchSize) {
+                    // this chunk keeps hashing while the one before it is written
+                    if (pending != null) {
+                        write(pending, errors);
+                    }
+                    pending = chunk;
+                    chunk = new ArrayList<>(batchSize);
+                }
+            }
+            if (pending != null) {
+                write(pending, errors);
+            }
+            if (!chunk.isEmpty()) {
+                write(chunk, errors);
+            }
+        }
+        // the import created the file, so it is the import's to delete
+        if (failed == 0) {
+            Files.deleteIfExists(errorFile);
+        }
+        if (vaccinesChanged) {
+            refreshIndex();
+        }
+        return new ImportResult(rows, imported, failed, (System.nanoTime() - started) / 1_000_000,
+                failed == 0 ? null : errorFile);
+    }
+
+    private Row parse(int lineNumber, String line) {
+        Row row = new Row(lineNumber, line);
+        String[] fields = line.split(",", 3);
+        if (fields.length != 3) {
+            row.error = "expected 3 fields";
+            return row;
+        }
+        row.type = fields[0].trim();
+        row.name = fields[1].trim();
+        if (row.name.isEmpty() || row.name.contains(" ")) {
+            row.error = "invalid name";
+            return row;
+        }
+        switch (row.type) {
+            case "patient":
+            case "caregiver":
+                if (fields[2].isEmpty()) {
+                    row.error = "missing password";
+                    return row;
+                }
+                row.salt = hasher.newSalt();
+                row.hash = hasher.hashAsync(fields[2], row.salt);
+                break;
+            case "vaccine":
+                try {
+                    row.doses = Integer.parseInt(fields[2].trim());
+                } catch (NumberFormatException e) {
+                    row.doses = -1;
+                }
+                if (row.doses < 0) {
+                    row.error = "invalid doses";
+                }
+                break;
+            default:
+                row.error = "unknown row type";
+        }
+        return row;
+    }
+
+    private void write(List<Row> chunk, BufferedWriter errors) throws IOException {
+        List<Row> patients = new ArrayList<>();
+        List<Row> caregivers = new ArrayList<>();
+        List<Row> vaccines = new ArrayList<>();
+        for (Row row : chunk) {
+            if (row.error != null) {
+                continue;
+            }
+            if (row.hash != null) {
+                try {
+                    row.hashed = row.hash.join();
+                } catch (CompletionException e) {
+                    row.error = "could not hash password";
+                    continue;
+                }
+            }
+            if (row.type.equals("patient")) {
+                patients.add(row);
+            } else if (row.type.equals("caregiver")) {
+                caregivers.add(row);
+            } else {
+                vaccines.add(row);
+            }
+        }
+
+        try {
+            WriteCoordinator.getInstance().execute(con -> {
+                insertUsers(con, insertPatient, patients);
+                insertUsers(con, insertCaregiver, caregivers);
+                upsertVaccines(con, vaccines);
+                return null;
+            });
+            for (Row row : patients) {
+                if (row.error == null) {
+                    UsernameRegistry.patients().add(row.name);
+                }
+            }
+            for (Row row : caregivers) {
+                if (row.error == null) {
+                    UsernameRegistry.caregivers().add(row.name);
+                }
+            }
+            vaccinesChanged |= !vaccines.isEmpty();
+            for (Row row : vaccines) {
+                VaccineRepository.getInstance().invalidate(row.name);
+            }
+        } catch (SQLException e) {
+            // nothing of the chunk was written, every row that was still good fails with it
+            for (Row row : chunk) {
+                if (row.error == null) {
+                    row.error = "batch failed: " + e.getMessage();
+                }
+            }
+        }
+
+        for (Row row : chunk) {
+            rows++;
+            if (row.error == null) {
+                imported++;
+            } else {
+                failed++;
+                errors.write(row.lineNumber + "," + row.error + "," + row.line);
+                errors.newLine();
+            }
+        }
+        if (progress != null) {
+            progress.println("Imported " + imported + " of " + rows + " rows, " + failed + " failed");
+            progress.flush();
+        }
+    }
+
+    private static void insertUsers(Connection con, String sql, List<Row> users) throws SQLException {
+        if (users.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            for (Row row : users) {
+                statement.setString(1, row.name);
+                statement.setBytes(2, row.salt);
+                statement.setBytes(3, row.hashed);
+                statement.addBatch();
+            }
+            int[] counts = statement.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    users.get(i).error = "username taken";
+                }
+            }
+        }
+    }
+
+    private static void upsertVaccines(Connection con, List<Row> vaccines) throws SQLException {
+        if (vaccines.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = con.prepareStatement(upsertVaccine)) {
+            for (Row row : vaccines) {
+                statement.setString(1, row.name);
+                statement.setInt(2, row.doses);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    // the import bypasses Vaccine, so the dose counts the index holds are reloaded from the database
+    private static void refreshIndex() {
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        if (index.isReady()) {
+            try {
+                index.load();
+            } catch (SQLException e) {
+                // the periodic refresh will catch up
+            }
+        }
+    }
+
+    private static class Row {
+        private final int lineNumber;
+        private final String line;
+        private String type;
+        private String name;
+        private int doses;
+        private byte[] salt;
+        private CompletableFuture<byte[]> hash;
+        private byte[] hashed;
+        private String error;
+
+        Row(int lineNumber, String line) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+        }
+    }
+}
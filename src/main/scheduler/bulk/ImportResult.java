@@ -0,0 +1,47 @@
+package scheduler.bulk;
+
+import java.nio.file.Path;
+
+// Totals of one BulkImporter run
+public class ImportResult {
+    private final long rows;
+    private final long imported;
+    private final long failed;
+    private final long elapsedMillis;
+    private final Path errorFile;
+
+    ImportResult(long rows, long imported, long failed, long elapsedMillis, Path errorFile) {
+        this.rows = rows;
+        this.imported = imported;
+        this.failed = failed;
+        this.elapsedMillis = elapsedMillis;
+        this.errorFile = errorFile;
+    }
+
+    // Getters
+    public long getRows() {
+        return rows;
+    }
+
+    public long getImported() {
+        return imported;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    // where the failed rows are, null if none failed
+    public Path getErrorFile() {
+        return errorFile;
+    }
+
+    @Override
+    public String toString() {
+        return "Imported " + imported + " of " + rows + " rows in " + elapsedMillis + " ms, " + failed + " failed";
+    }
+}
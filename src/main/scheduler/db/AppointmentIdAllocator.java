@@ -0,0 +1,9 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+
+// Hands out unique Appointments.aid values
+public interface AppointmentIdAllocator {
+
+    long nextId() throws SQLException;
+}
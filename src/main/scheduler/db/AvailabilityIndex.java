@@ -0,0 +1,197 @@
+package scheduler.db;
+
+import scheduler.util.Settings;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// In-memory copy of the free hours of every caregiver per date and the dose count per vaccine, so
+// search_caregiver_schedule can be answered without the database.
+//
+// It is filled by load() at startup and kept up to date by the write paths in this process
+// (uploadAvailability, reserve, cancel, add_doses). Writes made by other processes are picked up
+// by a full reload every AvailabilityIndexRefreshS seconds. Set AvailabilityIndex=false to turn
+// it off; callers then go to the database as before.
+public class AvailabilityIndex {
+
+    static final String loadAvailabilities = "SELECT A.Time, A.Username, A.Slots & ~A.Booked AS Free " +
+            "FROM Caregivers C, Availabilities A WHERE A.Username = C.Username AND (A.Slots & ~A.Booked) != 0";
+    // a shard has no Caregivers to join with
+    static final String loadShardAvailabilities = "SELECT Time, Username, Slots & ~Booked AS Free " +
+            "FROM Availabilities WHERE (Slots & ~Booked) != 0";
+    static final String loadVaccines = "SELECT Name, Doses FROM Vaccines";
+
+    private final boolean enabled;
+    private final long refreshSeconds;
+    private volatile Snapshot snapshot = null;
+    private ScheduledExecutorService refresher = null;
+
+    public AvailabilityIndex(boolean enabled, long refreshSeconds) {
+        this.enabled = enabled;
+        this.refreshSeconds = refreshSeconds;
+    }
+
+    public static AvailabilityIndex getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // True once the index has been loaded and can answer reads
+    public boolean isReady() {
+        return enabled && snapshot != null;
+    }
+
+    // Read everything from the database, replacing whatever the index held
+    public synchronized void load() throws SQLException {
+        if (!enabled) {
+            return;
+        }
+        Snapshot fresh = new Snapshot();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try {
+            if (ShardRouter.isSharded()) {
+                ShardRouter.fanOut(null, shard -> readAvailabilities(shard, loadShardAvailabilities, fresh));
+            } else {
+                readAvailabilities(con, loadAvailabilities, fresh);
+            }
+            try (PreparedStatement statement = con.prepareStatement(loadVaccines);
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    fresh.doses.put(resultSet.getString("Name"), resultSet.getInt("Doses"));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        snapshot = fresh;
+
+        if (refresher == null && refreshSeconds > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "availability-index-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+            refresher.scheduleWithFixedDelay(() -> {
+                try {
+                    load();
+                } catch (SQLException e) {
+                    // keep serving the previous snapshot, the next refresh will try again
+                }
+            }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private static int readAvailabilities(Connection con, String query, Snapshot fresh) throws SQLException {
+        int count = 0;
+        try (PreparedStatement statement = con.prepareStatement(query);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                fresh.slots(resultSet.getDate("Time").toLocalDate()).put(resultSet.getString("Username"),
+                        resultSet.getLong("Free"));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Caregivers with a free hour on the date, in username order
+    public List<String> getCaregivers(Date d) {
+        return new ArrayList<>(getSlots(d).keySet());
+    }
+
+    // The free hours of every caregiver with any on the date, by username
+    public NavigableMap<String, Long> getSlots(Date d) {
+        NavigableMap<String, Long> slots = snapshot.slotsByDate.get(d.toLocalDate());
+        return slots == null ? Collections.emptyNavigableMap() : new TreeMap<>(slots);
+    }
+
+    // Dose count per vaccine, in name order
+    public NavigableMap<String, Integer> getDoses() {
+        return Collections.unmodifiableNavigableMap(snapshot.doses);
+    }
+
+    // the caregiver's free hours on the date are now exactly free
+    public void setSlots(Date d, String caregiver, long free) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            if (free == 0) {
+                current.slots(d.toLocalDate()).remove(caregiver);
+            } else {
+                current.slots(d.toLocalDate()).put(caregiver, free);
+            }
+        }
+    }
+
+    public void addSlots(Date d, String caregiver, long slots) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            current.slots(d.toLocalDate()).merge(caregiver, slots, (free, added) -> free | added);
+        }
+    }
+
+    // for a date the caregiver had no row for
+    public void addSlotsIfAbsent(Date d, String caregiver, long slots) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            current.slots(d.toLocalDate()).putIfAbsent(caregiver, slots);
+        }
+    }
+
+    public void removeSlots(Date d, String caregiver, long slots) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            current.slots(d.toLocalDate()).computeIfPresent(caregiver,
+                    (name, free) -> (free & ~slots) == 0 ? null : free & ~slots);
+        }
+    }
+
+    public void setDoses(String vaccine, int doses) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            current.doses.put(vaccine, doses);
+        }
+    }
+
+    public void addDoses(String vaccine, int delta) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            current.doses.computeIfPresent(vaccine, (name, doses) -> doses + delta);
+        }
+    }
+
+    private static class Snapshot {
+        private final ConcurrentSkipListMap<LocalDate, ConcurrentSkipListMap<String, Long>> slotsByDate =
+                new ConcurrentSkipListMap<>();
+        private final ConcurrentSkipListMap<String, Integer> doses = new ConcurrentSkipListMap<>();
+
+        ConcurrentSkipListMap<String, Long> slots(LocalDate d) {
+            return slotsByDate.computeIfAbsent(d, k -> new ConcurrentSkipListMap<>());
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final AvailabilityIndex INSTANCE = new AvailabilityIndex(
+                Settings.getBoolean("AvailabilityIndex", true),
+                Settings.getLong("AvailabilityIndexRefreshS", 60));
+    }
+}
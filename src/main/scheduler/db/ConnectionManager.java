@@ -1,38 +1,189 @@
 package scheduler.db;
 
+import scheduler.metrics.Counter;
+import scheduler.metrics.Metrics;
+import scheduler.util.Settings;
+
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.Properties;
 
 public class ConnectionManager {
 
-    private final String driverName = "org.sqlite.JDBC";
-    private final String connectionUrl = "jdbc:sqlite:" + System.getenv("DBPath");
+    private static final String driverName = "org.sqlite.JDBC";
+    private static final String connectionUrl = "jdbc:sqlite:" + Settings.get("DBPath", null);
+    // Shards=N (N > 1) keeps availabilities and appointments in N more files, see ShardRouter
+    private static final int shardCount = Math.max(1, Settings.getInt("Shards", 1));
+    private static final String shardPath = Settings.get("ShardPath", Settings.get("DBPath", null) + ".shard%d");
+
+    // the database everything else lives in, DBPath
+    public static final int CATALOG = -1;
+
+    private static final Counter connectionErrors = Metrics.getInstance().counter("db_connection_errors_total",
+            "Connections that could not be borrowed from the pool");
 
+    // the connection of the batch running on this thread, see beginBatch
+    private static final ThreadLocal<Connection> batchConnection = new ThreadLocal<>();
+
+    private final int shard;
     private Connection con = null;
 
+    // a connection manager for the catalog
     public ConnectionManager() {
-        try {
-            Class.forName(driverName);
-        } catch (ClassNotFoundException e) {
-            System.out.println(e.toString());
-        }
+        this(CATALOG);
+    }
+
+    private ConnectionManager(int shard) {
+        this.shard = shard;
+    }
+
+    // A connection manager for one of the date shards, or for the catalog if the database is not sharded
+    public static ConnectionManager forShard(int shard) {
+        return new ConnectionManager(shardCount > 1 ? shard : CATALOG);
+    }
+
+    // 1 if the database is not sharded
+    public static int getShardCount() {
+        return shardCount;
     }
 
+    // SQLite takes one writer at a time, so WriteCoordinator queues writes for a writer thread
+    public static boolean isSingleWriter() {
+        return true;
+    }
+
+    // Borrow a connection from the shared pool, or share the batch's if one is running on this thread
+    // and this is the catalog
     public Connection createConnection() {
+        if (shard == CATALOG && batchConnection.get() != null) {
+            con = batchConnection.get();
+            return con;
+        }
         try {
-            con = DriverManager.getConnection(connectionUrl);
+            con = pool().borrow();
         } catch (SQLException e) {
+            connectionErrors.increment();
             e.printStackTrace();
         }
         return con;
     }
 
+    // For queries that only read. One SQLite file has no replicas, so this is createConnection(); the
+    // Aurora connection manager sends them to a read replica unless session (a username, or null)
+    // has just written.
+    public Connection createReadConnection(String session) {
+        return createConnection();
+    }
+
+    // Called after session's write commits, for read-your-writes routing on managers with replicas
+    public static void wrote(String session) {
+    }
+
+    // Hand the connection back to the pool, safe to call more than once
     public void closeConnection() {
+        if (this.con != null && this.con != batchConnection.get()) {
+            pool().release(this.con);
+        }
+        this.con = null;
+    }
+
+    // Until endBatch, every ConnectionManager on this thread hands out the same connection, in one
+    // transaction: a run of small writes then costs one borrow and one commit instead of one each.
+    // Only for code that leaves the transaction alone, a commit in between would end it early.
+    public static void beginBatch() throws SQLException {
+        if (batchConnection.get() != null) {
+            throw new IllegalStateException("A batch is already running on this thread");
+        }
+        Connection shared = PoolHolder.POOL.borrow();
         try {
-            this.con.close();
+            shared.setAutoCommit(false);
         } catch (SQLException e) {
-            e.printStackTrace();
+            PoolHolder.POOL.release(shared);
+            throw e;
+        }
+        batchConnection.set(shared);
+    }
+
+    public static boolean isBatching() {
+        return batchConnection.get() != null;
+    }
+
+    // Commits the batch's writes (or rolls them back) and returns its connection to the pool
+    public static void endBatch(boolean commit) throws SQLException {
+        Connection shared = batchConnection.get();
+        if (shared == null) {
+            return;
+        }
+        batchConnection.remove();
+        try {
+            if (commit) {
+                shared.commit();
+            }
+        } finally {
+            // release rolls back whatever was not committed
+            PoolHolder.POOL.release(shared);
+        }
+    }
+
+    public static PoolStats getPoolStats() {
+        return PoolHolder.POOL.getStats();
+    }
+
+    private ConnectionPool pool() {
+        return shard == CATALOG ? PoolHolder.POOL : ShardPoolHolder.POOLS[shard];
+    }
+
+    // the pool is created on first use and shared by every ConnectionManager in the process
+    private static class PoolHolder {
+        private static final ConnectionPool POOL = createPool(connectionUrl);
+
+        static {
+            Metrics metrics = Metrics.getInstance();
+            metrics.gauge("db_pool_active_connections", "Connections borrowed right now", () -> POOL.getStats().getActive());
+            metrics.gauge("db_pool_idle_connections", "Open connections waiting in the pool", () -> POOL.getStats().getIdle());
+            metrics.gauge("db_pool_waiting_threads", "Threads waiting for a connection", () -> POOL.getStats().getWaiting());
+            metrics.counter("db_pool_borrow_timeouts_total", "Borrows that gave up waiting", () -> POOL.getStats().getTimeouts());
+            metrics.gauge("db_statement_cache_hit_ratio", "Share of prepared statements reused from the cache",
+                    () -> POOL.getStats().getStatementCacheHitRate());
+        }
+
+        static ConnectionPool createPool(String url) {
+            try {
+                Class.forName(driverName);
+            } catch (ClassNotFoundException e) {
+                System.out.println(e.toString());
+            }
+            // begin transactions with the write lock held: a deferred transaction that reads before
+            // it writes fails with SQLITE_BUSY instead of waiting when another writer got there first
+            Properties properties = new Properties();
+            properties.setProperty("transaction_mode", "IMMEDIATE");
+            // WAL lets reads go on while the write coordinator commits, and with it NORMAL only syncs
+            // at checkpoints: a power cut may lose the last commits but never corrupts the database
+            properties.setProperty("journal_mode", Settings.get("SqliteJournalMode", "WAL"));
+            properties.setProperty("synchronous", Settings.get("SqliteSynchronous", "NORMAL"));
+            // writers outside the coordinator (waitlist, archive, import) wait for the lock instead of failing
+            properties.setProperty("busy_timeout", String.valueOf(Settings.getInt("SqliteBusyTimeoutMs", 5_000)));
+            return new ConnectionPool.ConnectionPoolBuilder(() -> DriverManager.getConnection(url, properties))
+                    .minSize(Settings.getInt("PoolMinSize", 1))
+                    .maxSize(Settings.getInt("PoolMaxSize", 10))
+                    .idleTimeoutMillis(Settings.getLong("PoolIdleTimeoutMs", 60_000))
+                    .borrowTimeoutMillis(Settings.getLong("PoolBorrowTimeoutMs", 5_000))
+                    .validationIntervalMillis(Settings.getLong("PoolValidationIntervalMs", 500))
+                    .validationTimeoutSeconds(Settings.getInt("PoolValidationTimeoutS", 2))
+                    .statementCacheSize(Settings.getInt("StatementCacheSize", 32))
+                    .build();
+        }
+    }
+
+    // one pool per shard file, opened the first time a shard is used
+    private static class ShardPoolHolder {
+        private static final ConnectionPool[] POOLS = new ConnectionPool[shardCount];
+
+        static {
+            for (int i = 0; i < shardCount; i++) {
+                POOLS[i] = PoolHolder.createPool("jdbc:sqlite:" + String.format(shardPath, i));
+            }
         }
     }
 }
@@ -0,0 +1,366 @@
+package scheduler.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ConnectionPool {
+
+    // opens a new physical connection, e.g. DriverManager.getConnection(url)
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private final ConnectionFactory factory;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long borrowTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+
+    // idle connections, most recently used first so that the tail is what goes stale
+    private final LinkedBlockingDeque<IdleConnection> idle = new LinkedBlockingDeque<>();
+    // one permit per connection that may be handed out, this is what bounds the pool
+    private final Semaphore permits;
+    private final ScheduledExecutorService evictor;
+    // prepared statements of each open physical connection, outliving the borrows
+    private final Map<Connection, StatementCache> statementCaches = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    // statistics
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger total = new AtomicInteger();
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+
+    private ConnectionPool(ConnectionPoolBuilder builder) {
+        this.factory = builder.factory;
+        this.maxSize = Math.max(1, builder.maxSize);
+        this.minSize = Math.max(0, Math.min(builder.minSize, this.maxSize));
+        this.idleTimeoutMillis = builder.idleTimeoutMillis;
+        this.borrowTimeoutMillis = builder.borrowTimeoutMillis;
+        this.validationIntervalMillis = builder.validationIntervalMillis;
+        this.validationTimeoutSeconds = builder.validationTimeoutSeconds;
+        this.statementCacheSize = Math.max(0, builder.statementCacheSize);
+        this.permits = new Semaphore(this.maxSize, true);
+
+        // open the minimum number of connections up front so the first commands don't pay for them
+        for (int i = 0; i < minSize; i++) {
+            try {
+                idle.offerLast(new IdleConnection(openPhysical()));
+            } catch (SQLException e) {
+                System.out.println("Error occurred when opening connection: " + e.getMessage());
+                break;
+            }
+        }
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Borrow a connection, waiting at most borrowTimeoutMillis for one to be returned when the pool is exhausted.
+    // Calling close() on the returned connection hands it back to the pool.
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLException("Timed out after " + borrowTimeoutMillis + " ms waiting for a connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection");
+        }
+        long waited = System.nanoTime() - start;
+        borrowCount.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+        try {
+            Connection con = takeIdle();
+            if (con == null) {
+                con = openPhysical();
+            }
+            active.incrementAndGet();
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new PooledConnection(con));
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    // Return a borrowed connection, statements the borrower left open are closed and
+    // any transaction it left open is rolled back
+    public void release(Connection con) {
+        if (con == null || !Proxy.isProxyClass(con.getClass())
+                || !(Proxy.getInvocationHandler(con) instanceof PooledConnection)) {
+            return;
+        }
+        ((PooledConnection) Proxy.getInvocationHandler(con)).release();
+    }
+
+    public PoolStats getStats() {
+        long borrows = borrowCount.sum();
+        return new PoolStats(active.get(), idle.size(), total.get(), maxSize, borrows,
+                permits.getQueueLength(), waitNanos.sum(), maxWaitNanos.get(), timeouts.sum(),
+                created.sum(), evicted.sum(), statementHits.sum(), statementMisses.sum());
+    }
+
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        IdleConnection entry;
+        while ((entry = idle.pollFirst()) != null) {
+            closePhysical(entry.con);
+        }
+    }
+
+    private Connection takeIdle() {
+        IdleConnection entry;
+        while ((entry = idle.pollFirst()) != null) {
+            // skip the validation round trip for connections that were in use a moment ago
+            if (System.nanoTime() - entry.lastUsed < TimeUnit.MILLISECONDS.toNanos(validationIntervalMillis)) {
+                return entry.con;
+            }
+            try {
+                if (entry.con.isValid(validationTimeoutSeconds)) {
+                    return entry.con;
+                }
+            } catch (SQLException e) {
+                // fall through and drop it
+            }
+            closePhysical(entry.con);
+        }
+        return null;
+    }
+
+    private void evictIdle() {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        while (total.get() > minSize) {
+            IdleConnection entry = idle.pollLast();
+            if (entry == null) {
+                return;
+            }
+            if (entry.lastUsed > cutoff) {
+                idle.offerLast(entry);
+                return;
+            }
+            evicted.increment();
+            closePhysical(entry.con);
+        }
+    }
+
+    private Connection openPhysical() throws SQLException {
+        Connection con = factory.create();
+        if (con == null) {
+            throw new SQLException("Connection factory returned no connection");
+        }
+        total.incrementAndGet();
+        created.increment();
+        if (statementCacheSize > 0) {
+            statementCaches.put(con, new StatementCache(con, statementCacheSize, statementHits, statementMisses));
+        }
+        return con;
+    }
+
+    private void closePhysical(Connection con) {
+        total.decrementAndGet();
+        StatementCache cache = statementCaches.remove(con);
+        if (cache != null) {
+            cache.close();
+        }
+        try {
+            con.close();
+        } catch (SQLException e) {
+            // nothing left to do with it
+        }
+    }
+
+    private void returnPhysical(Connection con) {
+        active.decrementAndGet();
+        try {
+            if (!con.getAutoCommit()) {
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+            if (closed) {
+                closePhysical(con);
+            } else {
+                idle.offerFirst(new IdleConnection(con));
+            }
+        } catch (SQLException e) {
+            // the connection is broken, don't hand it out again
+            closePhysical(con);
+        } finally {
+            permits.release();
+        }
+    }
+
+    // what borrowers actually hold: forwards to the physical connection until it is released
+    private class PooledConnection implements InvocationHandler {
+        private final Connection physical;
+        private final StatementCache cache;
+        private final List<Statement> statements = new ArrayList<>();
+        private boolean released = false;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.cache = statementCaches.get(physical);
+        }
+
+        synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            // an unfinished SQLite cursor keeps its read lock, so never let one outlive the borrow,
+            // cached statements are reset and kept for the next borrower
+            for (Statement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // the statement is unusable either way
+                }
+            }
+            statements.clear();
+            returnPhysical(physical);
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    release();
+                    return null;
+                case "isClosed":
+                    return released || physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + physical + "]";
+                default:
+                    break;
+            }
+            if (released) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            try {
+                if (cache != null && method.getName().equals("prepareStatement") && args.length == 1) {
+                    PreparedStatement statement = cache.prepare((String) args[0]);
+                    statements.add(statement);
+                    return TimedStatement.wrap(statement, (String) args[0]);
+                }
+                Object result = method.invoke(physical, args);
+                if (result instanceof Statement) {
+                    statements.add((Statement) result);
+                    String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                    return TimedStatement.wrap((Statement) result, sql);
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static class IdleConnection {
+        private final Connection con;
+        private final long lastUsed;
+
+        IdleConnection(Connection con) {
+            this.con = con;
+            this.lastUsed = System.nanoTime();
+        }
+    }
+
+    public static class ConnectionPoolBuilder {
+        private final ConnectionFactory factory;
+        private int minSize = 1;
+        private int maxSize = 10;
+        private long idleTimeoutMillis = 60_000;
+        private long borrowTimeoutMillis = 5_000;
+        private long validationIntervalMillis = 500;
+        private int validationTimeoutSeconds = 2;
+        private int statementCacheSize = 32;
+
+        public ConnectionPoolBuilder(ConnectionFactory factory) {
+            this.factory = factory;
+        }
+
+        public ConnectionPoolBuilder minSize(int minSize) {
+            this.minSize = minSize;
+            return this;
+        }
+
+        public ConnectionPoolBuilder maxSize(int maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        public ConnectionPoolBuilder idleTimeoutMillis(long idleTimeoutMillis) {
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            return this;
+        }
+
+        public ConnectionPoolBuilder borrowTimeoutMillis(long borrowTimeoutMillis) {
+            this.borrowTimeoutMillis = borrowTimeoutMillis;
+            return this;
+        }
+
+        public ConnectionPoolBuilder validationIntervalMillis(long validationIntervalMillis) {
+            this.validationIntervalMillis = validationIntervalMillis;
+            return this;
+        }
+
+        public ConnectionPoolBuilder validationTimeoutSeconds(int validationTimeoutSeconds) {
+            this.validationTimeoutSeconds = validationTimeoutSeconds;
+            return this;
+        }
+
+        // prepared statements kept per connection, 0 prepares every statement afresh
+        public ConnectionPoolBuilder statementCacheSize(int statementCacheSize) {
+            this.statementCacheSize = statementCacheSize;
+            return this;
+        }
+
+        public ConnectionPool build() {
+            return new ConnectionPool(this);
+        }
+    }
+}
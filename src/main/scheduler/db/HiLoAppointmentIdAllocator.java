@@ -0,0 +1,78 @@
+package scheduler.db;
+
+import scheduler.util.Settings;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Reserves ids from the database a block at a time and hands them out from memory. Blocks are
+// committed before any id in them is used, so ids stay unique across processes sharing the
+// database; ids of a block that is not used up before shutdown are skipped.
+public class HiLoAppointmentIdAllocator implements AppointmentIdAllocator {
+
+    // reserves blockSize consecutive ids and returns the first one
+    public interface BlockSource {
+        long allocate(int blockSize) throws SQLException;
+    }
+
+    private final BlockSource source;
+    private final int blockSize;
+    private volatile Block current = new Block(0, 0);
+
+    public HiLoAppointmentIdAllocator(BlockSource source, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive!");
+        }
+        this.source = source;
+        this.blockSize = blockSize;
+    }
+
+    // the process-wide allocator, configured by AppointmentIdSource ("table" or "sequence")
+    // and AppointmentIdBlockSize
+    public static HiLoAppointmentIdAllocator getDefault() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    @Override
+    public long nextId() throws SQLException {
+        while (true) {
+            Block block = current;
+            long id = block.next.getAndIncrement();
+            if (id < block.end) {
+                return id;
+            }
+            refill(block);
+        }
+    }
+
+    // only one thread goes to the database, the others find a fresh block when they retry
+    private synchronized void refill(Block exhausted) throws SQLException {
+        if (current != exhausted) {
+            return;
+        }
+        long start = source.allocate(blockSize);
+        current = new Block(start, start + blockSize);
+    }
+
+    private static class DefaultHolder {
+        private static final HiLoAppointmentIdAllocator DEFAULT = create();
+
+        private static HiLoAppointmentIdAllocator create() {
+            int blockSize = Settings.getInt("AppointmentIdBlockSize", 100);
+            if (Settings.get("AppointmentIdSource", "table").equals("sequence")) {
+                return new HiLoAppointmentIdAllocator(new SequenceBlockSource("appointment_hi_seq"), blockSize);
+            }
+            return new HiLoAppointmentIdAllocator(new TableBlockSource("Appointments"), blockSize);
+        }
+    }
+
+    private static class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+}
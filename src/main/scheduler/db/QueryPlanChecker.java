@@ -0,0 +1,208 @@
+package scheduler.db;
+
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.Vaccine;
+import scheduler.model.VaccineRepository;
+import scheduler.service.ArchiveJob;
+import scheduler.service.CaregiverSelectionStrategy;
+import scheduler.service.ReservationEngine;
+import scheduler.service.SchedulerService;
+import scheduler.service.WaitlistService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Checks with SQLite's EXPLAIN QUERY PLAN that the scheduler's lookups are served by an index.
+//
+// Builds an empty in-memory database from sqlite/create.sql (from the classpath, or the path given
+// as the first argument) and an empty shard the way SchemaMigrator creates one, runs the migrations
+// on both, and prints the plan of every query below. Exits with status 1 if a query that should be
+// a lookup scans a whole table, so it can run after a schema or query change:
+//   java -cp vaccine-scheduler.jar:sqlite-jdbc.jar scheduler.db.QueryPlanChecker
+// The queries are the constants the scheduler runs, so a changed query is checked as it is; a new
+// one has to be added here.
+public class QueryPlanChecker {
+
+    // queries that read a bounded number of rows, and where they come from
+    private static final Map<String, String> LOOKUPS = new LinkedHashMap<>();
+    // the same, for the tables a shard holds
+    private static final Map<String, String> SHARD_LOOKUPS = new LinkedHashMap<>();
+    // queries that are meant to read every row
+    private static final Map<String, String> FULL_READS = new LinkedHashMap<>();
+    private static final Map<String, String> SHARD_FULL_READS = new LinkedHashMap<>();
+
+    static {
+        LOOKUPS.put("Patient login", Patient.getPatient);
+        LOOKUPS.put("Caregiver login", Caregiver.getCaregiver);
+        LOOKUPS.put("Patient rehash", Patient.updateHash);
+        LOOKUPS.put("Caregiver rehash", Caregiver.updateHash);
+        LOOKUPS.put("UsernameRegistry.nameExists (patients)", UsernameRegistry.nameExists("Patients", "Name"));
+        LOOKUPS.put("UsernameRegistry.nameExists (caregivers)", UsernameRegistry.nameExists("Caregivers", "Username"));
+        LOOKUPS.put("SchedulerService.searchSchedule", SchedulerService.findCaregivers);
+        putAppointmentQueries(LOOKUPS);
+        LOOKUPS.put("Vaccine lookup", Vaccine.getVaccine);
+        LOOKUPS.put("VaccineRepository.changeDoses", VaccineRepository.changeDoses);
+        LOOKUPS.put("Caregiver.addAvailability", Caregiver.addAvailability);
+        LOOKUPS.put("ReservationEngine.findCaregivers", ReservationEngine.findCaregivers);
+        LOOKUPS.put("CaregiverSelectionStrategy.LeastLoaded", CaregiverSelectionStrategy.LeastLoaded.countAppointments);
+        LOOKUPS.put("ReservationEngine.claimSlot", ReservationEngine.claimSlot);
+        LOOKUPS.put("ReservationEngine.insertAppointment", ReservationEngine.insertAppointment);
+        LOOKUPS.put("ReservationEngine.takeDose", ReservationEngine.takeDose);
+        LOOKUPS.put("ReservationEngine.takeDoses", ReservationEngine.takeDoses);
+        LOOKUPS.put("ReservationEngine.checkDoses", ReservationEngine.checkDoses);
+        LOOKUPS.put("ReservationEngine.findAppointment", ReservationEngine.findAppointment);
+        LOOKUPS.put("ReservationEngine.deleteAppointment", ReservationEngine.deleteAppointment);
+        LOOKUPS.put("ReservationEngine.returnDoses", ReservationEngine.returnDoses);
+        LOOKUPS.put("ReservationEngine.returnSlot", ReservationEngine.returnSlot);
+        LOOKUPS.put("ReservationEngine.returnDay", ReservationEngine.returnDay);
+        LOOKUPS.put("WaitlistService.joinWaitlist", WaitlistService.joinWaitlist);
+        LOOKUPS.put("WaitlistService.leaveWaitlist", WaitlistService.leaveWaitlist);
+        LOOKUPS.put("WaitlistService.waitersByDate", WaitlistService.waitersByDate);
+        LOOKUPS.put("WaitlistService.waitersByVaccine", WaitlistService.waitersByVaccine);
+        LOOKUPS.put("WaitlistService.position", WaitlistService.position);
+        LOOKUPS.put("WaitlistService.expireWaiters", WaitlistService.expireWaiters);
+        putArchiveQueries(LOOKUPS);
+        LOOKUPS.put("TableBlockSource.reserveBlock", TableBlockSource.reserveBlock);
+        LOOKUPS.put("TableBlockSource.readNext", TableBlockSource.readNext);
+        LOOKUPS.put("TableBlockSource.seedSequence", TableBlockSource.seedSequence);
+
+        SHARD_LOOKUPS.put("SchedulerService.searchSchedule", SchedulerService.findShardCaregivers);
+        putAppointmentQueries(SHARD_LOOKUPS);
+        SHARD_LOOKUPS.put("Caregiver.addAvailability", Caregiver.addAvailability);
+        SHARD_LOOKUPS.put("ReservationEngine.findCaregivers", ReservationEngine.findCaregivers);
+        SHARD_LOOKUPS.put("CaregiverSelectionStrategy.LeastLoaded", CaregiverSelectionStrategy.LeastLoaded.countAppointments);
+        SHARD_LOOKUPS.put("ReservationEngine.claimSlot", ReservationEngine.claimSlot);
+        SHARD_LOOKUPS.put("ReservationEngine.insertAppointment", ReservationEngine.insertAppointment);
+        SHARD_LOOKUPS.put("ReservationEngine.findAppointment", ReservationEngine.findAppointment);
+        SHARD_LOOKUPS.put("ReservationEngine.deleteAppointment", ReservationEngine.deleteAppointment);
+        SHARD_LOOKUPS.put("ReservationEngine.returnSlot", ReservationEngine.returnSlot);
+        SHARD_LOOKUPS.put("ReservationEngine.returnDay", ReservationEngine.returnDay);
+        putArchiveQueries(SHARD_LOOKUPS);
+
+        FULL_READS.put("SchedulerService.searchSchedule (vaccines)", SchedulerService.allVaccines);
+        FULL_READS.put("UsernameRegistry.loadNames (patients)", UsernameRegistry.loadNames("Patients", "Name"));
+        FULL_READS.put("UsernameRegistry.loadNames (caregivers)", UsernameRegistry.loadNames("Caregivers", "Username"));
+        FULL_READS.put("AvailabilityIndex.loadAvailabilities", AvailabilityIndex.loadAvailabilities);
+        FULL_READS.put("AvailabilityIndex.loadVaccines", AvailabilityIndex.loadVaccines);
+        FULL_READS.put("WaitlistService.waitingDates", WaitlistService.waitingDates);
+
+        SHARD_FULL_READS.put("AvailabilityIndex.loadShardAvailabilities", AvailabilityIndex.loadShardAvailabilities);
+    }
+
+    // every query showAppointments can build
+    private static void putAppointmentQueries(Map<String, String> queries) {
+        for (boolean archived : new boolean[] {false, true}) {
+            for (boolean caregiver : new boolean[] {true, false}) {
+                for (boolean ranged : new boolean[] {false, true}) {
+                    for (boolean paged : new boolean[] {true, false}) {
+                        String variant = (archived ? "archive, " : "") + (caregiver ? "caregiver" : "patient")
+                                + (ranged ? ", date range" : "") + (paged ? "" : ", no limit");
+                        queries.put("SchedulerService.showAppointments (" + variant + ")",
+                                SchedulerService.appointmentsQuery(caregiver, archived, ranged, paged));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void putArchiveQueries(Map<String, String> queries) {
+        queries.put("ArchiveJob.pastAppointments", ArchiveJob.pastAppointments);
+        queries.put("ArchiveJob.archiveAppointment", ArchiveJob.archiveAppointment);
+        queries.put("ArchiveJob.deleteAppointment", ArchiveJob.deleteAppointment);
+        queries.put("ArchiveJob.pastAvailabilities", ArchiveJob.pastAvailabilities);
+        queries.put("ArchiveJob.archiveAvailability", ArchiveJob.archiveAvailability);
+        queries.put("ArchiveJob.deleteAvailability", ArchiveJob.deleteAvailability);
+    }
+
+    public static void main(String[] args) throws IOException, SQLException {
+        String script = args.length > 0 ? Files.readString(Path.of(args[0])) : readCreateScript();
+        List<String> failures = new ArrayList<>();
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            try (Statement statement = con.createStatement()) {
+                for (String sql : script.split(";")) {
+                    if (!sql.replaceAll("--.*", "").isBlank()) {
+                        statement.executeUpdate(sql);
+                    }
+                }
+            }
+            SchemaMigrator.migrate(con);
+            check(con, "", LOOKUPS, FULL_READS, failures);
+        }
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            SchemaMigrator.createShardTables(con);
+            SchemaMigrator.migrateShard(con);
+            check(con, "shard: ", SHARD_LOOKUPS, SHARD_FULL_READS, failures);
+        }
+
+        if (!failures.isEmpty()) {
+            System.out.println("Full table scans in lookups:");
+            for (String failure : failures) {
+                System.out.println("  " + failure);
+            }
+            System.exit(1);
+        }
+        System.out.println("All " + (LOOKUPS.size() + SHARD_LOOKUPS.size()) + " lookups use an index");
+    }
+
+    private static void check(Connection con, String prefix, Map<String, String> lookups,
+                              Map<String, String> fullReads, List<String> failures) throws SQLException {
+        for (Map.Entry<String, String> query : lookups.entrySet()) {
+            List<String> plan = explain(con, query.getValue());
+            print(prefix + query.getKey(), plan);
+            for (String step : plan) {
+                if (isFullScan(step)) {
+                    failures.add(prefix + query.getKey() + ": " + step);
+                }
+            }
+        }
+        for (Map.Entry<String, String> query : fullReads.entrySet()) {
+            print(prefix + query.getKey() + " (full read)", explain(con, query.getValue()));
+        }
+    }
+
+    // SCAN visits every row of a table or index, a lookup should only SEARCH
+    static boolean isFullScan(String step) {
+        return step.startsWith("SCAN ") && !step.equals("SCAN CONSTANT ROW");
+    }
+
+    private static List<String> explain(Connection con, String sql) throws SQLException {
+        List<String> plan = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                plan.add(resultSet.getString("detail"));
+            }
+        }
+        return plan;
+    }
+
+    private static void print(String name, List<String> plan) {
+        System.out.println(name);
+        for (String step : plan) {
+            System.out.println("    " + step);
+        }
+    }
+
+    private static String readCreateScript() throws IOException {
+        try (InputStream in = QueryPlanChecker.class.getResourceAsStream("/sqlite/create.sql")) {
+            if (in == null) {
+                throw new IOException("sqlite/create.sql is not on the classpath, pass its path instead");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
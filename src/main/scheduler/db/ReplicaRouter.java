@@ -0,0 +1,154 @@
+package scheduler.db;
+
+import scheduler.metrics.Counter;
+import scheduler.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Picks the read replica a read-only query goes to, or tells the caller to use the writer instead.
+//
+// Replicas take turns. Every checkIntervalMillis each one is asked for its replication lag with
+// lagQuery (which returns milliseconds); one that does not answer, or lags more than maxLagMillis,
+// gets no reads until a later check passes. A session that wrote less than readYourWritesMillis ago
+// reads from the writer, so a patient sees the appointment they just booked even on a lagging
+// replica. With no replica usable every read goes to the writer.
+public class ReplicaRouter {
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final String lagQuery;
+    private final long maxLagMillis;
+    private final long readYourWritesNanos;
+    private final AtomicInteger next = new AtomicInteger();
+    // last write per session, pruned by the health check
+    private final Map<String, Long> lastWrites = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService checker;
+
+    private final Counter replicaReads;
+    private final Counter writerReads;
+
+    // replicas by endpoint name
+    public ReplicaRouter(Map<String, ConnectionPool> replicaPools, String lagQuery, long maxLagMillis,
+                         long readYourWritesMillis, long checkIntervalMillis) {
+        this.lagQuery = lagQuery;
+        this.maxLagMillis = maxLagMillis;
+        this.readYourWritesNanos = TimeUnit.MILLISECONDS.toNanos(readYourWritesMillis);
+
+        Metrics metrics = Metrics.getInstance();
+        this.replicaReads = metrics.counter("db_reads_total", "Read-only connections handed out, by target",
+                "target", "replica");
+        this.writerReads = metrics.counter("db_reads_total", "Read-only connections handed out, by target",
+                "target", "writer");
+        for (Map.Entry<String, ConnectionPool> entry : replicaPools.entrySet()) {
+            Replica replica = new Replica(entry.getKey(), entry.getValue());
+            replicas.add(replica);
+            metrics.gauge("db_replica_healthy", "1 if the replica gets reads", () -> replica.healthy ? 1 : 0,
+                    "endpoint", replica.name);
+            metrics.gauge("db_replica_lag_seconds", "Replication lag at the last health check",
+                    () -> replica.lagMillis / 1000.0, "endpoint", replica.name);
+        }
+
+        // the first check runs before any read, so a replica that is down never gets one
+        checkAll();
+        this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-health-check");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(100, checkIntervalMillis);
+        checker.scheduleWithFixedDelay(this::checkAll, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // The pool of the next healthy replica, or null if session (may be null) should read from the writer
+    public ConnectionPool choose(String session) {
+        if (session != null) {
+            Long wrote = lastWrites.get(session);
+            if (wrote != null && System.nanoTime() - wrote < readYourWritesNanos) {
+                writerReads.increment();
+                return null;
+            }
+        }
+        int n = replicas.size();
+        int start = Math.floorMod(next.getAndIncrement(), Math.max(1, n));
+        for (int i = 0; i < n; i++) {
+            Replica replica = replicas.get((start + i) % n);
+            if (replica.healthy) {
+                replicaReads.increment();
+                return replica.pool;
+            }
+        }
+        writerReads.increment();
+        return null;
+    }
+
+    // After session's write commits
+    public void wrote(String session) {
+        if (session != null) {
+            lastWrites.put(session, System.nanoTime());
+        }
+    }
+
+    // A borrow from the replica failed, it gets no reads until the next check passes
+    public void failed(ConnectionPool pool) {
+        for (Replica replica : replicas) {
+            if (replica.pool == pool) {
+                replica.healthy = false;
+            }
+        }
+    }
+
+    public void close() {
+        checker.shutdownNow();
+        for (Replica replica : replicas) {
+            replica.pool.close();
+        }
+    }
+
+    private void checkAll() {
+        for (Replica replica : replicas) {
+            replica.check();
+        }
+        long cutoff = System.nanoTime() - readYourWritesNanos;
+        lastWrites.values().removeIf(wrote -> wrote < cutoff);
+    }
+
+    private class Replica {
+        private final String name;
+        private final ConnectionPool pool;
+        private volatile boolean healthy = false;
+        private volatile long lagMillis = 0;
+
+        Replica(String name, ConnectionPool pool) {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        void check() {
+            Connection con = null;
+            try {
+                con = pool.borrow();
+                try (PreparedStatement statement = con.prepareStatement(lagQuery)) {
+                    statement.setQueryTimeout(Math.max(1, (int) TimeUnit.MILLISECONDS.toSeconds(maxLagMillis)));
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        lagMillis = resultSet.next() ? resultSet.getLong(1) : 0;
+                    }
+                }
+                healthy = lagMillis <= maxLagMillis;
+            } catch (SQLException e) {
+                healthy = false;
+            } finally {
+                pool.release(con);
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+// Brings an existing database up to the current schema at startup.
+//
+// Every change to create.sql and aurora-create.sql gets a migration here as well, with the next
+// version number, so databases created from an older script catch up. The SchemaVersion table
+// records what has been applied; each migration runs in its own transaction and only uses
+// statements that are safe to repeat (IF NOT EXISTS), so a database created from the current
+// scripts, or two processes starting at once, end up in the same place.
+//
+// Shard files (see ShardRouter) start out empty: they get the tables they hold from SHARD_TABLES,
+// then the migrations that change those tables, the same ones as the catalog's, so their indexes
+// never drift apart. Migrations of tables only the catalog holds (Waitlist, Sequences) are marked
+// catalogOnly and never touch a shard.
+public class SchemaMigrator {
+
+    private static final String createVersionTable = "CREATE TABLE IF NOT EXISTS SchemaVersion " +
+            "(Version int PRIMARY KEY, Description varchar(255))";
+    private static final String checkVersion = "SELECT 1 FROM SchemaVersion WHERE Version = ?";
+    private static final String recordVersion = "INSERT INTO SchemaVersion VALUES (?, ?)";
+
+    // create.sql's definitions of the tables a shard holds, without the references: the tables
+    // they point to are in the catalog. Each shard also archives into AppointmentsArchive and
+    // AvailabilitiesArchive of its own, which migration 3 creates.
+    private static final List<String> SHARD_TABLES = List.of(
+            "CREATE TABLE IF NOT EXISTS Availabilities (Time date, Username varchar(255), PRIMARY KEY (Time, Username))",
+            "CREATE TABLE IF NOT EXISTS Appointments (aid int PRIMARY KEY, vaccine_name varchar(255), " +
+                    "patient_name varchar(255), caregiver_name varchar(255), Time date)");
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "secondary indexes for appointment lookups", false,
+                    "CREATE INDEX IF NOT EXISTS AppointmentsByPatient ON Appointments (patient_name, aid)",
+                    "CREATE INDEX IF NOT EXISTS AppointmentsByCaregiver ON Appointments (caregiver_name, aid)",
+                    "CREATE INDEX IF NOT EXISTS AppointmentsByVaccine ON Appointments (vaccine_name)",
+                    "CREATE INDEX IF NOT EXISTS AppointmentsByTime ON Appointments (Time)"),
+            new Migration(2, "waitlist", true,
+                    "CREATE TABLE IF NOT EXISTS Waitlist (patient_name varchar(255) REFERENCES Patients(Name), " +
+                            "vaccine_name varchar(255), Time date, Joined bigint, " +
+                            "PRIMARY KEY (patient_name, Time, vaccine_name))",
+                    "CREATE INDEX IF NOT EXISTS WaitlistByTime ON Waitlist (Time, Joined)",
+                    "CREATE INDEX IF NOT EXISTS WaitlistByVaccine ON Waitlist (vaccine_name, Joined)"),
+            new Migration(3, "archive tables", false,
+                    "CREATE TABLE IF NOT EXISTS AppointmentsArchive (aid int PRIMARY KEY, vaccine_name varchar(255), " +
+                            "patient_name varchar(255), caregiver_name varchar(255), Time date)",
+                    "CREATE INDEX IF NOT EXISTS AppointmentsArchiveByPatient ON AppointmentsArchive (patient_name, aid)",
+                    "CREATE INDEX IF NOT EXISTS AppointmentsArchiveByCaregiver ON AppointmentsArchive (caregiver_name, aid)",
+                    "CREATE TABLE IF NOT EXISTS AvailabilitiesArchive (Time date, Username varchar(255), " +
+                            "PRIMARY KEY (Time, Username))"),
+            // ADD COLUMN has no IF NOT EXISTS, the version check in the same transaction keeps it from
+            // running twice. A day uploaded before offers 9:00 to 17:00 (TimeSlots.LEGACY_DAY), an
+            // appointment booked before has no hour.
+            new Migration(4, "hourly time slots", false,
+                    "ALTER TABLE Availabilities ADD COLUMN Slots bigint NOT NULL DEFAULT 130560",
+                    "ALTER TABLE Availabilities ADD COLUMN Booked bigint NOT NULL DEFAULT 0",
+                    "ALTER TABLE AvailabilitiesArchive ADD COLUMN Slots bigint NOT NULL DEFAULT 130560",
+                    "ALTER TABLE AvailabilitiesArchive ADD COLUMN Booked bigint NOT NULL DEFAULT 0",
+                    "ALTER TABLE Appointments ADD COLUMN Hour int",
+                    "ALTER TABLE AppointmentsArchive ADD COLUMN Hour int"),
+            // TableBlockSource seeds the row of a database that had appointments before
+            new Migration(5, "appointment id sequences", true,
+                    "CREATE TABLE IF NOT EXISTS Sequences (Name varchar(255) PRIMARY KEY, NextValue bigint)")
+    );
+
+    // Applies every missing migration to the catalog and the shards, returns how many were applied
+    public static int migrate() throws SQLException {
+        int applied = migrate(new ConnectionManager(), false);
+        if (ShardRouter.isSharded()) {
+            for (int i = 0; i < ConnectionManager.getShardCount(); i++) {
+                applied += migrate(ConnectionManager.forShard(i), true);
+            }
+        }
+        return applied;
+    }
+
+    private static int migrate(ConnectionManager cm, boolean shard) throws SQLException {
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try {
+            if (shard) {
+                createShardTables(con);
+            }
+            return migrate(con, shard);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // the tables of an empty shard, before its migrations
+    static void createShardTables(Connection con) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            for (String sql : SHARD_TABLES) {
+                statement.executeUpdate(sql);
+            }
+        }
+    }
+
+    // the catalog's migrations, on con
+    public static int migrate(Connection con) throws SQLException {
+        return migrate(con, false);
+    }
+
+    // the migrations a shard gets, on con
+    static int migrateShard(Connection con) throws SQLException {
+        return migrate(con, true);
+    }
+
+    private static int migrate(Connection con, boolean shard) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.executeUpdate(createVersionTable);
+        }
+        int applied = 0;
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try {
+            for (Migration migration : MIGRATIONS) {
+                if (shard && migration.catalogOnly) {
+                    continue;
+                }
+                if (apply(con, migration)) {
+                    applied++;
+                }
+            }
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+        return applied;
+    }
+
+    // the version the database is at once migrate() has run
+    public static int getLatestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    private static boolean apply(Connection con, Migration migration) throws SQLException {
+        try {
+            try (PreparedStatement statement = con.prepareStatement(checkVersion)) {
+                statement.setInt(1, migration.version);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (resultSet.next()) {
+                        con.rollback();
+                        return false;
+                    }
+                }
+            }
+            try (Statement statement = con.createStatement()) {
+                for (String sql : migration.statements) {
+                    statement.executeUpdate(sql);
+                }
+            }
+            try (PreparedStatement statement = con.prepareStatement(recordVersion)) {
+                statement.setInt(1, migration.version);
+                statement.setString(2, migration.description);
+                statement.executeUpdate();
+            }
+            con.commit();
+            return true;
+        } catch (SQLException e) {
+            try {
+                con.rollback();
+            } catch (SQLException rollback) {
+                e.addSuppressed(rollback);
+            }
+            throw e;
+        }
+    }
+
+    private static class Migration {
+        private final int version;
+        private final String description;
+        // for tables the shards don't have
+        private final boolean catalogOnly;
+        private final String[] statements;
+
+        Migration(int version, String description, boolean catalogOnly, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.catalogOnly = catalogOnly;
+            this.statements = statements;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// Reserves id blocks from a PostgreSQL sequence: each nextval is a "hi" value that owns the ids
+// hi * blockSize up to (hi + 1) * blockSize - 1, so the sequence itself can keep INCREMENT BY 1
+public class SequenceBlockSource implements HiLoAppointmentIdAllocator.BlockSource {
+
+    private final String nextHi;
+
+    public SequenceBlockSource(String sequenceName) {
+        this.nextHi = "SELECT nextval('" + sequenceName + "')";
+    }
+
+    @Override
+    public long allocate(int blockSize) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement statement = con.prepareStatement(nextHi);
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getLong(1) * blockSize;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Where a date's availabilities and appointments live when the database is sharded.
+//
+// With Shards=N the catalog (DBPath) keeps patients, caregivers, vaccines, the waitlist and the id
+// sequences, and N shard files (ShardPath, with %d for the shard number) keep Availabilities,
+// Appointments and their archives, a day in shard epochDay % N. Consecutive days land in different
+// shards, so bookings for different days take different write locks and commit in parallel; only
+// the dose count, one short UPDATE on the catalog, is shared by all of them. Reads that are not
+// about one date, like a user's appointments, ask every shard at once and merge.
+//
+// Without Shards there is one shard, the catalog itself, and every method here routes to it.
+public class ShardRouter {
+
+    private static final AtomicInteger fanOutThreads = new AtomicInteger();
+    private static final ExecutorService fanOut = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "shard-fan-out-" + fanOutThreads.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    // a read or write on one shard's connection
+    public interface ShardQuery<T> {
+        T run(Connection con) throws SQLException;
+    }
+
+    public static boolean isSharded() {
+        return ConnectionManager.getShardCount() > 1;
+    }
+
+    public static int shardOf(Date d) {
+        return (int) Math.floorMod(d.toLocalDate().toEpochDay(), (long) ConnectionManager.getShardCount());
+    }
+
+    public static ConnectionManager forDate(Date d) {
+        return ConnectionManager.forShard(shardOf(d));
+    }
+
+    public static WriteCoordinator writerFor(Date d) {
+        return WriteCoordinator.forShard(shardOf(d));
+    }
+
+    // Runs query on every shard, on read connections for session (see createReadConnection), and
+    // returns the results in shard order. More than one shard are queried in parallel.
+    public static <T> List<T> fanOut(String session, ShardQuery<T> query) throws SQLException {
+        int shards = ConnectionManager.getShardCount();
+        if (shards == 1) {
+            List<T> results = new ArrayList<>(1);
+            results.add(run(0, session, query));
+            return results;
+        }
+        List<CompletableFuture<T>> pending = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            int shard = i;
+            pending.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return run(shard, session, query);
+                } catch (SQLException e) {
+                    throw new CompletionException(e);
+                }
+            }, fanOut));
+        }
+        List<T> results = new ArrayList<>(shards);
+        for (CompletableFuture<T> future : pending) {
+            try {
+                results.add(future.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof SQLException) {
+                    throw (SQLException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return results;
+    }
+
+    private static <T> T run(int shard, String session, ShardQuery<T> query) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forShard(shard);
+        Connection con = cm.createReadConnection(session);
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try {
+            return query.run(con);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
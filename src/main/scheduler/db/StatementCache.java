@@ -0,0 +1,142 @@
+package scheduler.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// The prepared statements of one physical connection by SQL text, so that a query the scheduler
+// runs on every command is parsed once per connection instead of once per call.
+//
+// prepareStatement(sql) checks a statement out and close() checks it back in: its result set is
+// closed (an open SQLite cursor would keep its read lock), its parameters and batch are cleared,
+// and it waits for the next borrower preparing the same SQL. A statement that is checked out is
+// not handed out twice, asking for the same SQL again meanwhile prepares a second one. At most
+// capacity statements are kept, the least recently used one is closed to make room.
+class StatementCache {
+
+    private final Connection physical;
+    private final int capacity;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final Map<String, PreparedStatement> idle;
+
+    StatementCache(Connection physical, int capacity, LongAdder hits, LongAdder misses) {
+        this.physical = physical;
+        this.capacity = capacity;
+        this.hits = hits;
+        this.misses = misses;
+        this.idle = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= StatementCache.this.capacity) {
+                    return false;
+                }
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    // a statement for sql that goes back into the cache when it is closed
+    synchronized PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = idle.remove(sql);
+        if (statement != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            statement = physical.prepareStatement(sql);
+        }
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new CachedStatement(sql, statement));
+    }
+
+    private synchronized void checkIn(String sql, PreparedStatement statement, ResultSet resultSet) {
+        try {
+            if (resultSet != null) {
+                resultSet.close();
+            }
+            statement.clearParameters();
+            statement.clearBatch();
+        } catch (SQLException e) {
+            // not worth keeping if it can't be reset
+            closeQuietly(statement);
+            return;
+        }
+        if (capacity <= 0 || idle.putIfAbsent(sql, statement) != null) {
+            closeQuietly(statement);
+        }
+    }
+
+    // before the physical connection is closed
+    synchronized void close() {
+        for (PreparedStatement statement : idle.values()) {
+            closeQuietly(statement);
+        }
+        idle.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // it is being dropped either way
+        }
+    }
+
+    // what the borrower holds, forwards to the cached statement until it is closed
+    private class CachedStatement implements InvocationHandler {
+        private final String sql;
+        private final PreparedStatement statement;
+        // the last result set handed out, closed on check-in
+        private ResultSet resultSet;
+        private boolean closed = false;
+
+        CachedStatement(String sql, PreparedStatement statement) {
+            this.sql = sql;
+            this.statement = statement;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        checkIn(sql, statement, resultSet);
+                        resultSet = null;
+                    }
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedStatement[" + sql + "]";
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Statement is closed");
+            }
+            try {
+                Object result = method.invoke(statement, args);
+                if (result instanceof ResultSet) {
+                    resultSet = (ResultSet) result;
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
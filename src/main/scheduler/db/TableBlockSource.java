@@ -0,0 +1,57 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// Reserves id blocks from a row of the Sequences table (see SchemaMigrator), which holds the next
+// unreserved id
+public class TableBlockSource implements HiLoAppointmentIdAllocator.BlockSource {
+
+    static final String reserveBlock = "UPDATE Sequences SET NextValue = NextValue + ? WHERE Name = ?";
+    static final String readNext = "SELECT NextValue FROM Sequences WHERE Name = ?";
+    // databases created before the Sequences table start after the ids already in use. Another
+    // process may seed the row first, then this does nothing and the block comes from its row. The
+    // WHERE keeps SQLite from reading ON CONFLICT as a join constraint.
+    static final String seedSequence = "INSERT INTO Sequences SELECT ?, COALESCE(MAX(aid), 0) + 1 FROM Appointments " +
+            "WHERE true ON CONFLICT (Name) DO NOTHING";
+
+    private final String name;
+
+    public TableBlockSource(String name) {
+        this.name = name;
+    }
+
+    // One write of the WriteCoordinator, so the block is reserved in the writer's transaction (or
+    // the batch's) rather than in one of its own
+    @Override
+    public long allocate(int blockSize) throws SQLException {
+        return WriteCoordinator.getInstance().execute(con -> {
+            if (reserve(con, blockSize) == 0) {
+                try (PreparedStatement statement = con.prepareStatement(seedSequence)) {
+                    statement.setString(1, name);
+                    statement.executeUpdate();
+                }
+                if (reserve(con, blockSize) == 0) {
+                    throw new SQLException("Sequence " + name + " could not be seeded");
+                }
+            }
+            try (PreparedStatement statement = con.prepareStatement(readNext)) {
+                statement.setString(1, name);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    return resultSet.getLong("NextValue") - blockSize;
+                }
+            }
+        });
+    }
+
+    private int reserve(Connection con, int blockSize) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(reserveBlock)) {
+            statement.setInt(1, blockSize);
+            statement.setString(2, name);
+            return statement.executeUpdate();
+        }
+    }
+}
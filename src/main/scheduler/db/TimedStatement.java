@@ -0,0 +1,99 @@
+package scheduler.db;
+
+import scheduler.metrics.Counter;
+import scheduler.metrics.Histogram;
+import scheduler.metrics.Metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Times every execute call on a statement the pool hands out, by the kind of SQL it runs
+// (select, insert, update, delete or other), and counts the ones that throw
+class TimedStatement implements InvocationHandler {
+
+    private static final String[] KINDS = {"select", "insert", "update", "delete", "other"};
+    private static final Map<String, Histogram> LATENCY = new HashMap<>();
+    private static final Map<String, Counter> ERRORS = new HashMap<>();
+
+    static {
+        Metrics metrics = Metrics.getInstance();
+        for (String kind : KINDS) {
+            LATENCY.put(kind, metrics.histogram("jdbc_statement_seconds", "Time spent executing statements", "kind", kind));
+            ERRORS.put(kind, metrics.counter("jdbc_errors_total", "Statements that failed with an SQLException", "kind", kind));
+        }
+    }
+
+    private final Statement statement;
+    // null for a plain Statement, whose SQL comes with each execute call
+    private final String sql;
+
+    private TimedStatement(Statement statement, String sql) {
+        this.statement = statement;
+        this.sql = sql;
+    }
+
+    static Statement wrap(Statement statement, String sql) {
+        Class<?> type = statement instanceof CallableStatement ? CallableStatement.class
+                : statement instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+        return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[]{type},
+                new TimedStatement(statement, sql));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "TimedStatement[" + statement + "]";
+            default:
+                break;
+        }
+        if (!method.getName().startsWith("execute")) {
+            return forward(method, args);
+        }
+        String kind = kind(args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : sql);
+        long start = System.nanoTime();
+        try {
+            return forward(method, args);
+        } catch (SQLException e) {
+            ERRORS.get(kind).increment();
+            throw e;
+        } finally {
+            LATENCY.get(kind).record(System.nanoTime() - start);
+        }
+    }
+
+    private Object forward(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(statement, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // the first keyword, so "UPDATE ... RETURNING" is an update even though it returns rows
+    static String kind(String sql) {
+        if (sql == null) {
+            return "other";
+        }
+        String trimmed = sql.stripLeading();
+        int end = 0;
+        while (end < trimmed.length() && Character.isLetter(trimmed.charAt(end))) {
+            end++;
+        }
+        String keyword = trimmed.substring(0, end).toLowerCase(Locale.ROOT);
+        return LATENCY.containsKey(keyword) ? keyword : "other";
+    }
+}
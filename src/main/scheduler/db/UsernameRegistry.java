@@ -0,0 +1,218 @@
+package scheduler.db;
+
+import scheduler.metrics.Counter;
+import scheduler.metrics.Metrics;
+import scheduler.util.Settings;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Answers "is this username taken?" for create_patient and create_caregiver from a Bloom filter of
+// the usernames in one table, so the common case during a registration drive, a new name, needs no
+// database round trip.
+//
+// A name the filter has never seen is definitely free. A possible hit, or any check before load(),
+// goes to the database with an indexed SELECT 1 ... LIMIT 1. The filter only ever gains names: a
+// rolled back insert leaves a false positive behind, which costs one fallback query and nothing
+// else. Names are folded to lower case so a negative also holds under a case-insensitive collation.
+// Usernames registered by other processes are only seen after a restart, their insert then fails on
+// the primary key instead. Set UsernameRegistry=false to always ask the database.
+public class UsernameRegistry {
+
+    private final String table;
+    private final String loadNames;
+    private final String nameExists;
+    private final boolean enabled;
+    private final int minCapacity;
+    private final double falsePositiveRate;
+    private volatile Filter filter = null;
+
+    private final Counter negatives;
+    private final Counter fallbacks;
+    private final Counter falsePositives;
+    private final LongAdder fallbackCount = new LongAdder();
+    private final LongAdder falsePositiveCount = new LongAdder();
+
+    public UsernameRegistry(String table, String column, boolean enabled, int minCapacity, double falsePositiveRate) {
+        this.table = table;
+        this.loadNames = loadNames(table, column);
+        this.nameExists = nameExists(table, column);
+        this.enabled = enabled;
+        this.minCapacity = Math.max(1, minCapacity);
+        this.falsePositiveRate = Math.min(0.5, Math.max(1e-9, falsePositiveRate));
+
+        Metrics metrics = Metrics.getInstance();
+        this.negatives = metrics.counter("username_checks_total",
+                "Username checks, by whether the filter answered or the database had to", "table", table,
+                "result", "negative");
+        this.fallbacks = metrics.counter("username_checks_total",
+                "Username checks, by whether the filter answered or the database had to", "table", table,
+                "result", "fallback");
+        this.falsePositives = metrics.counter("username_false_positives_total",
+                "Database fallbacks that found the username free", "table", table);
+        metrics.gauge("username_false_positive_ratio", "Share of database fallbacks that found the username free",
+                () -> fallbackCount.sum() == 0 ? 0 : (double) falsePositiveCount.sum() / fallbackCount.sum(),
+                "table", table);
+    }
+
+    public static UsernameRegistry patients() {
+        return InstanceHolder.PATIENTS;
+    }
+
+    public static UsernameRegistry caregivers() {
+        return InstanceHolder.CAREGIVERS;
+    }
+
+    // Reads every username of the table into a new filter sized for twice as many names, or at least
+    // UsernameRegistryCapacity. Past its capacity the filter still works, with more false positives.
+    public synchronized void load() throws SQLException {
+        if (!enabled) {
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try {
+            int count = 0;
+            try (PreparedStatement statement = con.prepareStatement("SELECT COUNT(*) FROM " + table);
+                 ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    count = resultSet.getInt(1);
+                }
+            }
+            Filter fresh = new Filter((int) Math.min(Integer.MAX_VALUE / 2, Math.max(minCapacity, 2L * count)),
+                    falsePositiveRate);
+            try (PreparedStatement statement = con.prepareStatement(loadNames);
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    fresh.add(fold(resultSet.getString(1)));
+                }
+            }
+            filter = fresh;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public boolean exists(String username) throws SQLException {
+        Filter current = filter;
+        if (current != null && !current.mightContain(fold(username))) {
+            negatives.increment();
+            return false;
+        }
+        fallbacks.increment();
+        fallbackCount.increment();
+        boolean exists = existsInDatabase(username);
+        if (!exists && current != null) {
+            falsePositives.increment();
+            falsePositiveCount.increment();
+        }
+        return exists;
+    }
+
+    // after the username was inserted, or is about to be
+    public void add(String username) {
+        Filter current = filter;
+        if (current != null) {
+            current.add(fold(username));
+        }
+    }
+
+    private boolean existsInDatabase(String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement statement = con.prepareStatement(nameExists)) {
+            statement.setString(1, username);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static String fold(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    static String loadNames(String table, String column) {
+        return "SELECT " + column + " FROM " + table;
+    }
+
+    static String nameExists(String table, String column) {
+        return "SELECT 1 FROM " + table + " WHERE " + column + " = ? LIMIT 1";
+    }
+
+    // bits * ln 2 / capacity hash functions, derived from two halves of one 64 bit hash
+    private static class Filter {
+        private final AtomicLongArray words;
+        private final long bits;
+        private final int hashes;
+
+        Filter(int capacity, double falsePositiveRate) {
+            long wanted = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.words = new AtomicLongArray((int) Math.max(1, (wanted + 63) / 64));
+            this.bits = words.length() * 64L;
+            this.hashes = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+        }
+
+        void add(String name) {
+            long hash = hash(name);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bits);
+                long mask = 1L << bit;
+                words.accumulateAndGet((int) (bit >>> 6), mask, (word, m) -> word | m);
+            }
+        }
+
+        boolean mightContain(String name) {
+            long hash = hash(name);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bits);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // FNV-1a over the chars, finished with the murmur3 mixer so both halves are usable
+        private static long hash(String name) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < name.length(); i++) {
+                h ^= name.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final boolean ENABLED = Settings.getBoolean("UsernameRegistry", true);
+        private static final int CAPACITY = Settings.getInt("UsernameRegistryCapacity", 100_000);
+        private static final double FALSE_POSITIVE_RATE = Settings.getDouble("UsernameRegistryFpRate", 0.01);
+        private static final UsernameRegistry PATIENTS =
+                new UsernameRegistry("Patients", "Name", ENABLED, CAPACITY, FALSE_POSITIVE_RATE);
+        private static final UsernameRegistry CAREGIVERS =
+                new UsernameRegistry("Caregivers", "Username", ENABLED, CAPACITY, FALSE_POSITIVE_RATE);
+    }
+}
@@ -0,0 +1,281 @@
+package scheduler.db;
+
+import scheduler.metrics.Counter;
+import scheduler.metrics.Metrics;
+import scheduler.util.Settings;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+// Runs the scheduler's writes on one thread, many of them per transaction.
+//
+// SQLite takes one writer at a time and every autocommit write pays for its own sync to disk, so
+// concurrent commands used to queue up on the write lock (or give up with SQLITE_BUSY) one commit
+// each. Here callers queue their write instead. The writer takes whatever has queued up, at most
+// groupSize writes, runs each inside a savepoint of one transaction and commits once; every caller's
+// future completes on its own once that commit is done. A write that fails, or whose result should
+// not be kept, is rolled back to its savepoint and does not affect the others in its group. If the
+// commit itself fails every write of the group fails with it.
+//
+// Writes get the connection and must neither commit nor roll back, nor wait for another write. A
+// sharded database has a writer per shard besides the catalog's, each committing on its own.
+// While a --batch group is open on the calling thread, catalog writes run right there, in the
+// batch's transaction, since the writer could not get the write lock before the batch commits. Set
+// WriteCoordinator=false to run every write in a transaction of its own on the calling thread,
+// which is also what happens on a database that takes concurrent writers (see
+// ConnectionManager.isSingleWriter): Aurora's writer would only be held back by one thread.
+public class WriteCoordinator {
+
+    // one unit of work on the writer's connection
+    public interface Write<T> {
+        T apply(Connection con) throws SQLException;
+    }
+
+    private final int shard;
+    private final boolean enabled;
+    private final int groupSize;
+    private final BlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    private final Counter writes;
+    private final Counter commits;
+    private final Counter failedCommits;
+
+    // shard is ConnectionManager.CATALOG or a shard number
+    public WriteCoordinator(int shard, boolean enabled, int groupSize) {
+        this.shard = shard;
+        this.enabled = enabled;
+        this.groupSize = Math.max(1, groupSize);
+
+        String db = shard == ConnectionManager.CATALOG ? "catalog" : "shard" + shard;
+        Metrics metrics = Metrics.getInstance();
+        this.writes = metrics.counter("write_operations_total", "Writes run by the write coordinator", "db", db);
+        this.commits = metrics.counter("write_commits_total", "Transactions the write coordinator committed", "db", db);
+        this.failedCommits = metrics.counter("write_commit_errors_total", "Group commits that failed", "db", db);
+        metrics.gauge("write_queue_length", "Writes waiting for the writer thread", queue::size, "db", db);
+    }
+
+    // the catalog's
+    public static WriteCoordinator getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    // the shard's, which is the catalog's if the database is not sharded
+    public static WriteCoordinator forShard(int shard) {
+        if (shard == ConnectionManager.CATALOG || !ShardRouter.isSharded()) {
+            return getInstance();
+        }
+        return InstanceHolder.SHARDS[shard];
+    }
+
+    // Queues the write, the future completes once it is committed
+    public <T> CompletableFuture<T> submit(Write<T> write) {
+        return submit(write, result -> true);
+    }
+
+    // The same, rolling the write back (and still completing with its result) when keep rejects it
+    public <T> CompletableFuture<T> submit(Write<T> write, Predicate<? super T> keep) {
+        Pending<T> pending = new Pending<>(write, keep);
+        if (!enabled || inBatch()) {
+            runAlone(pending);
+            return pending.future;
+        }
+        start();
+        queue.add(pending);
+        return pending.future;
+    }
+
+    // submit and wait, for callers that are synchronous anyway
+    public <T> T execute(Write<T> write) throws SQLException {
+        return await(submit(write));
+    }
+
+    public <T> T execute(Write<T> write, Predicate<? super T> keep) throws SQLException {
+        return await(submit(write, keep));
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws SQLException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private boolean inBatch() {
+        return shard == ConnectionManager.CATALOG && ConnectionManager.isBatching();
+    }
+
+    private void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        Thread writer = new Thread(this::writeLoop,
+                shard == ConnectionManager.CATALOG ? "write-coordinator" : "write-coordinator-shard" + shard);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void writeLoop() {
+        List<Pending<?>> group = new ArrayList<>(groupSize);
+        while (true) {
+            try {
+                group.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(group, groupSize - 1);
+            runGroup(group);
+            group.clear();
+        }
+    }
+
+    private void runGroup(List<Pending<?>> group) {
+        ConnectionManager cm = ConnectionManager.forShard(shard);
+        Connection con = cm.createConnection();
+        if (con == null) {
+            SQLException e = new SQLException("No connection available");
+            for (Pending<?> pending : group) {
+                pending.future.completeExceptionally(e);
+            }
+            return;
+        }
+        List<Pending<?>> done = new ArrayList<>(group.size());
+        try {
+            con.setAutoCommit(false);
+            for (Pending<?> pending : group) {
+                if (pending.runInSavepoint(con)) {
+                    done.add(pending);
+                }
+            }
+            con.commit();
+            commits.increment();
+            writes.add(group.size());
+            for (Pending<?> pending : done) {
+                pending.complete();
+            }
+        } catch (SQLException e) {
+            failedCommits.increment();
+            try {
+                con.rollback();
+            } catch (SQLException rollback) {
+                e.addSuppressed(rollback);
+            }
+            for (Pending<?> pending : done) {
+                pending.future.completeExceptionally(e);
+            }
+        } finally {
+            // anything that did not complete above failed along with the group
+            for (Pending<?> pending : group) {
+                pending.future.completeExceptionally(new SQLException("Write was not committed"));
+            }
+            cm.closeConnection();
+        }
+    }
+
+    // without the writer thread: on the batch's connection inside its transaction, or on a
+    // connection of its own in a transaction of its own
+    private void runAlone(Pending<?> pending) {
+        ConnectionManager cm = ConnectionManager.forShard(shard);
+        Connection con = cm.createConnection();
+        if (con == null) {
+            pending.future.completeExceptionally(new SQLException("No connection available"));
+            return;
+        }
+        boolean batching = inBatch();
+        try {
+            if (batching) {
+                if (pending.runInSavepoint(con)) {
+                    pending.complete();
+                }
+                return;
+            }
+            con.setAutoCommit(false);
+            if (pending.runInSavepoint(con)) {
+                con.commit();
+                writes.increment();
+                commits.increment();
+                pending.complete();
+            }
+        } catch (SQLException e) {
+            // a batch's transaction is the batch's to end
+            if (!batching) {
+                try {
+                    con.rollback();
+                } catch (SQLException rollback) {
+                    e.addSuppressed(rollback);
+                }
+            }
+            pending.future.completeExceptionally(e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static class Pending<T> {
+        private final Write<T> write;
+        private final Predicate<? super T> keep;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private T result;
+
+        Pending(Write<T> write, Predicate<? super T> keep) {
+            this.write = write;
+            this.keep = keep;
+        }
+
+        // Returns true if the write is part of the transaction and waits for its commit, false if
+        // it was rolled back and its future is already complete
+        boolean runInSavepoint(Connection con) throws SQLException {
+            Savepoint savepoint = con.setSavepoint();
+            try {
+                result = write.apply(con);
+            } catch (SQLException | RuntimeException e) {
+                con.rollback(savepoint);
+                future.completeExceptionally(e);
+                return false;
+            }
+            if (!keep.test(result)) {
+                con.rollback(savepoint);
+                future.complete(result);
+                return false;
+            }
+            con.releaseSavepoint(savepoint);
+            return true;
+        }
+
+        void complete() {
+            future.complete(result);
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final boolean ENABLED = ConnectionManager.isSingleWriter()
+                && Settings.getBoolean("WriteCoordinator", true);
+        private static final int GROUP_SIZE = Settings.getInt("WriteGroupSize", 64);
+        private static final WriteCoordinator INSTANCE =
+                new WriteCoordinator(ConnectionManager.CATALOG, ENABLED, GROUP_SIZE);
+        private static final WriteCoordinator[] SHARDS = new WriteCoordinator[ShardRouter.isSharded()
+                ? ConnectionManager.getShardCount() : 0];
+
+        static {
+            for (int i = 0; i < SHARDS.length; i++) {
+                SHARDS[i] = new WriteCoordinator(i, ENABLED, GROUP_SIZE);
+            }
+        }
+    }
+}
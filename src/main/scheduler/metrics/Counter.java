@@ -0,0 +1,23 @@
+package scheduler.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// A count that only goes up, e.g. statements that failed
+public class Counter {
+    private final LongAdder value = new LongAdder();
+
+    Counter() {
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long n) {
+        value.add(n);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,216 @@
+package scheduler.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+// The process wide metrics: counters, gauges and latency histograms, identified by a name and
+// label pairs, e.g. command_latency_seconds{command="reserve"}. A metric is created the first time
+// it is asked for, so callers that record often should hold on to what they get back.
+//
+// Everything can be written out in the Prometheus text format, once or every few seconds to a file
+// a node exporter's textfile collector (or anybody with cat) can pick up.
+public class Metrics {
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    // by metric name, then by rendered labels
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+    private final AtomicBoolean dumping = new AtomicBoolean(false);
+
+    private Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    // labels are name, value pairs
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").series.computeIfAbsent(labels(labels), k -> new Counter());
+    }
+
+    // a counter something else keeps count of, value is asked for whenever the metrics are written
+    // out; registering the same counter again replaces it
+    public void counter(String name, String help, Supplier<? extends Number> value, String... labels) {
+        family(name, help, "counter").series.put(labels(labels), value);
+    }
+
+    // histograms record nanoseconds, name them ..._seconds since that is what they are written out in
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, "summary").series.computeIfAbsent(labels(labels), k -> new Histogram());
+    }
+
+    // value is asked for whenever the metrics are written out, registering the same gauge again replaces it
+    public void gauge(String name, String help, Supplier<? extends Number> value, String... labels) {
+        family(name, help, "gauge").series.put(labels(labels), value);
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, k -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static String labels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name, value pairs!");
+        }
+        StringBuilder rendered = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                rendered.append(',');
+            }
+            rendered.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return rendered.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // Every metric in the Prometheus text exposition format
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family> entry : new TreeMap<>(families).entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof Histogram) {
+                    Histogram histogram = (Histogram) metric;
+                    for (double quantile : QUANTILES) {
+                        String withQuantile = (labels.isEmpty() ? "" : labels + ",") + "quantile=\"" + quantile + "\"";
+                        sample(out, name, withQuantile, seconds(histogram.percentile(quantile)));
+                    }
+                    sample(out, name + "_sum", labels, seconds(histogram.getSum()));
+                    sample(out, name + "_count", labels, Long.toString(histogram.getCount()));
+                } else {
+                    sample(out, name, labels, value(metric));
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    // One line per metric for the stats command, latencies in milliseconds
+    public List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Family> entry : new TreeMap<>(families).entrySet()) {
+            for (Map.Entry<String, Object> series : entry.getValue().series.entrySet()) {
+                String name = entry.getKey() + (series.getKey().isEmpty() ? "" : "{" + series.getKey() + "}");
+                Object metric = series.getValue();
+                if (metric instanceof Histogram) {
+                    Histogram histogram = (Histogram) metric;
+                    lines.add(name + " count=" + histogram.getCount()
+                            + " p50=" + millis(histogram.percentile(0.5))
+                            + " p99=" + millis(histogram.percentile(0.99))
+                            + " max=" + millis(histogram.getMax()));
+                } else {
+                    lines.add(name + " " + value(metric));
+                }
+            }
+        }
+        return lines;
+    }
+
+    private static String value(Object metric) {
+        if (metric instanceof Counter) {
+            return Long.toString(((Counter) metric).get());
+        }
+        try {
+            Object value = ((Supplier<?>) metric).get();
+            return value == null ? "NaN" : value.toString();
+        } catch (RuntimeException e) {
+            // a gauge over something that is gone, e.g. a closed pool
+            return "NaN";
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3fms", nanos / 1e6);
+    }
+
+    // Replaces the file with the current metrics, through a temporary file so that readers never
+    // see half of it
+    public void writeTo(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            Files.writeString(tmp, toPrometheus(), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Writes the metrics to the file every periodSeconds and once more on exit, does nothing if
+    // a dump is running already
+    public void startDump(Path file, long periodSeconds) {
+        if (periodSeconds <= 0 || !dumping.compareAndSet(false, true)) {
+            return;
+        }
+        Counter failures = counter("metrics_dump_errors_total", "Metrics dumps that could not be written");
+        Runnable dump = () -> {
+            try {
+                writeTo(file);
+            } catch (IOException e) {
+                failures.increment();
+            }
+        };
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleWithFixedDelay(dump, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(dump, "metrics-final-dump"));
+    }
+
+    private static class Family {
+        private final String help;
+        private final String type;
+        // Counter, Histogram or the Supplier of a gauge or of a counter kept elsewhere, by rendered
+        // labels, sorted so the output is stable
+        private final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
@@ -1,12 +1,31 @@
 package scheduler.model;
 
+import scheduler.db.AvailabilityIndex;
 import scheduler.db.ConnectionManager;
+import scheduler.db.ShardRouter;
+import scheduler.db.UsernameRegistry;
+import scheduler.db.WriteCoordinator;
+import scheduler.util.PasswordHasher;
+import scheduler.util.TimeSlots;
 import scheduler.util.Util;
 
 import java.sql.*;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class Caregiver {
+    public static final String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
+    public static final String updateHash = "UPDATE Caregivers SET Hash = ? WHERE Username = ?";
+    // adds the hours to the ones offered, and hands back the free hours unless nothing was added
+    public static final String addAvailability = "INSERT INTO Availabilities VALUES (?, ?, ?, 0) " +
+            "ON CONFLICT (Time, Username) DO UPDATE SET Slots = Availabilities.Slots | excluded.Slots " +
+            "WHERE (Availabilities.Slots | excluded.Slots) != Availabilities.Slots RETURNING Slots & ~Booked";
+
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
@@ -37,37 +56,103 @@ public class Caregiver {
     }
 
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
         String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?)";
         try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
+            WriteCoordinator.getInstance().execute(con -> {
+                try (PreparedStatement statement = con.prepareStatement(addCaregiver)) {
+                    statement.setString(1, this.username);
+                    statement.setBytes(2, this.salt);
+                    statement.setBytes(3, this.hash);
+                    return statement.executeUpdate();
+                }
+            });
+            UsernameRegistry.caregivers().add(this.username);
         } catch (SQLException e) {
             throw new SQLException();
-        } finally {
-            cm.closeConnection();
         }
     }
 
+    // Offers the clinic's hours (ClinicHours) on the date
     public void uploadAvailability(Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        uploadAvailability(d, TimeSlots.clinicDay());
+    }
 
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
+    // Offers the hours in slots (see TimeSlots) on the date, on top of the ones offered already
+    public void uploadAvailability(Date d, long slots) throws SQLException {
+        long free;
         try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
-            statement.setDate(1, d);
-            statement.setString(2, this.username);
-            statement.executeUpdate();
+            free = ShardRouter.writerFor(d).execute(con -> addSlots(con, d, slots));
         } catch (SQLException e) {
             throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        }
+        if (free != 0) {
+            AvailabilityIndex.getInstance().setSlots(d, this.username, free);
+        }
+    }
+
+    // The clinic's hours on every date, returns on how many dates that added hours
+    public int uploadAvailability(Collection<Date> dates) throws SQLException {
+        return uploadAvailability(dates, TimeSlots.clinicDay());
+    }
+
+    // Uploads every date in one transaction per shard, returns on how many dates that added hours.
+    // Dates that already offer all of them are skipped instead of failing the whole batch.
+    public int uploadAvailability(Collection<Date> dates, long slots) throws SQLException {
+        if (dates.isEmpty()) {
+            return 0;
+        }
+        Map<Integer, List<Date>> byShard = new TreeMap<>();
+        for (Date d : dates) {
+            byShard.computeIfAbsent(ShardRouter.shardOf(d), shard -> new ArrayList<>()).add(d);
+        }
+        // every shard's writer works on its part at the same time
+        List<List<Date>> batches = new ArrayList<>(byShard.values());
+        List<CompletableFuture<long[]>> pending = new ArrayList<>(batches.size());
+        for (Map.Entry<Integer, List<Date>> shard : byShard.entrySet()) {
+            List<Date> batch = shard.getValue();
+            pending.add(WriteCoordinator.forShard(shard.getKey()).submit(con -> {
+                long[] free = new long[batch.size()];
+                for (int i = 0; i < free.length; i++) {
+                    free[i] = addSlots(con, batch.get(i), slots);
+                }
+                return free;
+            }));
+        }
+        int uploaded = 0;
+        SQLException failure = null;
+        for (int shard = 0; shard < pending.size(); shard++) {
+            long[] free;
+            try {
+                free = pending.get(shard).join();
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = new SQLException(e.getCause());
+                }
+                continue;
+            }
+            // shards that did commit keep their dates, and the index learns about them
+            for (int i = 0; i < free.length; i++) {
+                if (free[i] != 0) {
+                    AvailabilityIndex.getInstance().setSlots(batches.get(shard).get(i), this.username, free[i]);
+                    uploaded++;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return uploaded;
+    }
+
+    // the free hours on the date afterwards, 0 if every hour in slots was offered already
+    private long addSlots(Connection con, Date d, long slots) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(addAvailability)) {
+            statement.setDate(1, d);
+            statement.setString(2, this.username);
+            statement.setLong(3, slots);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
         }
     }
 
@@ -100,11 +185,9 @@ public class Caregiver {
 
         public Caregiver get() throws SQLException {
             ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            Connection con = cm.createReadConnection(this.username);
 
-            String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
+            try (PreparedStatement statement = con.prepareStatement(getCaregiver)) {
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
@@ -113,13 +196,16 @@ public class Caregiver {
                     // try to remove the use of Util.trim() and you'll see :)
                     byte[] hash = Util.trim(resultSet.getBytes("Hash"));
                     // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
+                    PasswordHasher hasher = PasswordHasher.getDefault();
+                    if (!hasher.verify(password, salt, hash)) {
                         return null;
                     } else {
+                        // upgrade hashes made with older (or legacy) settings while we have the password
+                        if (hasher.needsRehash(hash)) {
+                            hash = rehash(hasher.hash(password, salt), hash);
+                        }
                         this.salt = salt;
                         this.hash = hash;
-                        cm.closeConnection();
                         return new Caregiver(this);
                     }
                 }
@@ -130,5 +216,23 @@ public class Caregiver {
                 cm.closeConnection();
             }
         }
+
+        // Store the new hash, keeping the old one if the update fails: the login itself succeeded.
+        // The login read from a connection that may be a read replica, so this goes to the writer
+        private byte[] rehash(byte[] newHash, byte[] oldHash) {
+            try {
+                WriteCoordinator.getInstance().execute(con -> {
+                    try (PreparedStatement statement = con.prepareStatement(updateHash)) {
+                        statement.setBytes(1, newHash);
+                        statement.setString(2, this.username);
+                        return statement.executeUpdate();
+                    }
+                });
+                ConnectionManager.wrote(this.username);
+                return newHash;
+            } catch (SQLException | RuntimeException e) {
+                return oldHash;
+            }
+        }
     }
 }
@@ -1,12 +1,17 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.UsernameRegistry;
+import scheduler.db.WriteCoordinator;
+import scheduler.util.PasswordHasher;
 import scheduler.util.Util;
 
 import java.sql.*;
-import java.util.Arrays;
 
 public class Patient {
+    public static final String getPatient = "SELECT Salt, Hash FROM Patients WHERE Name = ?";
+    public static final String updateHash = "UPDATE Patients SET Hash = ? WHERE Name = ?";
+
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
@@ -37,20 +42,19 @@ public class Patient {
     }
 
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
         String addPatient = "INSERT INTO Patients VALUES (? , ?, ?)";
         try {
-            PreparedStatement statement = con.prepareStatement(addPatient);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
+            WriteCoordinator.getInstance().execute(con -> {
+                try (PreparedStatement statement = con.prepareStatement(addPatient)) {
+                    statement.setString(1, this.username);
+                    statement.setBytes(2, this.salt);
+                    statement.setBytes(3, this.hash);
+                    return statement.executeUpdate();
+                }
+            });
+            UsernameRegistry.patients().add(this.username);
         } catch (SQLException e) {
             throw new SQLException();
-        } finally {
-            cm.closeConnection();
         }
     }
 
@@ -83,11 +87,9 @@ public class Patient {
 
         public Patient get() throws SQLException {
             ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            Connection con = cm.createReadConnection(this.username);
 
-            String getPatient = "SELECT Salt, Hash FROM Patients WHERE Name = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getPatient);
+            try (PreparedStatement statement = con.prepareStatement(getPatient)) {
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
@@ -96,13 +98,16 @@ public class Patient {
                     // try to remove the use of Util.trim() and you'll see :)
                     byte[] hash = Util.trim(resultSet.getBytes("Hash"));
                     // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
+                    PasswordHasher hasher = PasswordHasher.getDefault();
+                    if (!hasher.verify(password, salt, hash)) {
                         return null;
                     } else {
+                        // upgrade hashes made with older (or legacy) settings while we have the password
+                        if (hasher.needsRehash(hash)) {
+                            hash = rehash(hasher.hash(password, salt), hash);
+                        }
                         this.salt = salt;
                         this.hash = hash;
-                        cm.closeConnection();
                         return new Patient(this);
                     }
                 }
@@ -113,5 +118,23 @@ public class Patient {
                 cm.closeConnection();
             }
         }
+
+        // Store the new hash, keeping the old one if the update fails: the login itself succeeded.
+        // The login read from a connection that may be a read replica, so this goes to the writer
+        private byte[] rehash(byte[] newHash, byte[] oldHash) {
+            try {
+                WriteCoordinator.getInstance().execute(con -> {
+                    try (PreparedStatement statement = con.prepareStatement(updateHash)) {
+                        statement.setBytes(1, newHash);
+                        statement.setString(2, this.username);
+                        return statement.executeUpdate();
+                    }
+                });
+                ConnectionManager.wrote(this.username);
+                return newHash;
+            } catch (SQLException | RuntimeException e) {
+                return oldHash;
+            }
+        }
     }
 }
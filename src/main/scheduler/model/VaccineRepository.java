@@ -0,0 +1,214 @@
+package scheduler.model;
+
+import scheduler.db.AvailabilityIndex;
+import scheduler.db.WriteCoordinator;
+import scheduler.metrics.Metrics;
+import scheduler.util.Settings;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Looks vaccines up by name through a bounded LRU cache, and writes dose changes through to the
+// database as relative updates.
+//
+// The database stays the source of truth: every write stores the count the database returned, and
+// an entry is reloaded once it is older than the TTL, which bounds how far it can lag behind
+// writes from other processes. Booking decisions never read the cache, they check the doses in SQL.
+public class VaccineRepository {
+
+    private static final String addVaccine = "INSERT INTO Vaccines VALUES (?, ?)";
+    // refuses to take the count below zero, and hands back the new count in the same statement
+    public static final String changeDoses = "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ? AND Doses + ? >= 0 " +
+            "RETURNING Doses";
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public VaccineRepository(int maxSize, long ttlMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive!");
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        // access order, so the eldest entry is the least recently used one
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > VaccineRepository.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // the process-wide repository, sized by VaccineCacheSize with entries living VaccineCacheTtlMs
+    public static VaccineRepository getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    // Returns the vaccine, or null if there is none by that name
+    public Vaccine get(String name) throws SQLException {
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(name);
+        }
+        if (entry != null && System.nanoTime() - entry.loadedAt < ttlNanos) {
+            hits.increment();
+            return entry.toVaccine(name);
+        }
+        misses.increment();
+        Vaccine vaccine = new Vaccine.VaccineGetter(name).get();
+        if (vaccine != null) {
+            put(name, vaccine.getAvailableDoses());
+        }
+        return vaccine;
+    }
+
+    public Vaccine create(String name, int doses) throws SQLException {
+        try {
+            WriteCoordinator.getInstance().execute(con -> {
+                try (PreparedStatement statement = con.prepareStatement(addVaccine)) {
+                    statement.setString(1, name);
+                    statement.setInt(2, doses);
+                    return statement.executeUpdate();
+                }
+            });
+        } catch (SQLException e) {
+            throw new SQLException(e);
+        }
+        stored(name, doses);
+        return new Vaccine.VaccineBuilder(name, doses).build();
+    }
+
+    // Adds delta (which may be negative) to the vaccine's doses. Returns the new count, or null
+    // when there is no such vaccine or it has fewer than -delta doses left.
+    public Integer addDoses(String name, int delta) throws SQLException {
+        Integer doses;
+        try {
+            doses = WriteCoordinator.getInstance().execute(con -> {
+                try (PreparedStatement statement = con.prepareStatement(changeDoses)) {
+                    statement.setInt(1, delta);
+                    statement.setString(2, name);
+                    statement.setInt(3, delta);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        return resultSet.next() ? resultSet.getInt("Doses") : null;
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            throw new SQLException(e);
+        }
+        if (doses != null) {
+            stored(name, doses);
+        }
+        return doses;
+    }
+
+    // For dose changes committed elsewhere (e.g. by ReservationEngine): nudges a cached count
+    // without going to the database
+    public void adjustCachedDoses(String name, int delta) {
+        synchronized (cache) {
+            Entry entry = cache.get(name);
+            if (entry != null) {
+                cache.put(name, new Entry(entry.doses + delta, entry.loadedAt));
+            }
+        }
+    }
+
+    // For writes that bypass the repository, the next get() reloads the vaccine
+    public void invalidate(String name) {
+        synchronized (cache) {
+            cache.remove(name);
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    // Getters
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "VaccineRepository{" +
+                "size=" + size() +
+                ", maxSize=" + maxSize +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() +
+                '}';
+    }
+
+    private void stored(String name, int doses) {
+        put(name, doses);
+        AvailabilityIndex.getInstance().setDoses(name, doses);
+    }
+
+    private void put(String name, int doses) {
+        synchronized (cache) {
+            cache.put(name, new Entry(doses, System.nanoTime()));
+        }
+    }
+
+    private static class Entry {
+        private final int doses;
+        private final long loadedAt;
+
+        Entry(int doses, long loadedAt) {
+            this.doses = doses;
+            this.loadedAt = loadedAt;
+        }
+
+        Vaccine toVaccine(String name) throws SQLException {
+            return new Vaccine.VaccineBuilder(name, doses).build();
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final VaccineRepository INSTANCE = new VaccineRepository(
+                Settings.getInt("VaccineCacheSize", 256),
+                Settings.getLong("VaccineCacheTtlMs", 5000));
+
+        static {
+            Metrics metrics = Metrics.getInstance();
+            metrics.counter("vaccine_cache_hits_total", "Vaccine lookups answered from the cache", INSTANCE::getHits);
+            metrics.counter("vaccine_cache_misses_total", "Vaccine lookups that went to the database", INSTANCE::getMisses);
+            metrics.counter("vaccine_cache_evictions_total", "Vaccines dropped from the full cache",
+                    INSTANCE::getEvictions);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package scheduler.service;
+
+import scheduler.util.TimeSlots;
+
+import java.sql.Date;
+
+// One row of show_appointments
+public class Appointment {
+
+    private final long appointmentId;
+    private final String vaccineName;
+    private final Date date;
+    private final int hour;
+    private final String counterpartName;
+
+    Appointment(long appointmentId, String vaccineName, Date date, int hour, String counterpartName) {
+        this.appointmentId = appointmentId;
+        this.vaccineName = vaccineName;
+        this.date = date;
+        this.hour = hour;
+        this.counterpartName = counterpartName;
+    }
+
+    // Getters
+    public long getAppointmentId() {
+        return appointmentId;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    // TimeSlots.ANY_HOUR for an appointment booked before there were hours
+    public int getHour() {
+        return hour;
+    }
+
+    // the patient for a caregiver's appointments, the caregiver for a patient's
+    public String getCounterpartName() {
+        return counterpartName;
+    }
+
+    @Override
+    public String toString() {
+        return appointmentId + " " + vaccineName + " " + date
+                + (hour == TimeSlots.ANY_HOUR ? "" : " " + TimeSlots.formatHour(hour)) + " " + counterpartName;
+    }
+}
@@ -0,0 +1,38 @@
+package scheduler.service;
+
+import java.util.Collections;
+import java.util.List;
+
+// A page of appointments in aid order, and whether there are more after it
+public class AppointmentPage {
+
+    private final List<Appointment> appointments;
+    private final boolean hasMore;
+
+    AppointmentPage(List<Appointment> appointments, boolean hasMore) {
+        this.appointments = Collections.unmodifiableList(appointments);
+        this.hasMore = hasMore;
+    }
+
+    // Getters
+    public List<Appointment> getAppointments() {
+        return appointments;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    // where the next page starts, pass it as afterAid
+    public long getLastAppointmentId() {
+        return appointments.isEmpty() ? 0 : appointments.get(appointments.size() - 1).getAppointmentId();
+    }
+
+    @Override
+    public String toString() {
+        return "AppointmentPage{" +
+                "appointments=" + appointments +
+                ", hasMore=" + hasMore +
+                '}';
+    }
+}
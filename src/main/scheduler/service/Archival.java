@@ -0,0 +1,37 @@
+package scheduler.service;
+
+import java.sql.Date;
+
+// What one run of ArchiveJob moved into the archive tables
+public class Archival {
+
+    private final Date cutoff;
+    private final long appointments;
+    private final long availabilities;
+
+    Archival(Date cutoff, long appointments, long availabilities) {
+        this.cutoff = cutoff;
+        this.appointments = appointments;
+        this.availabilities = availabilities;
+    }
+
+    // Getters
+    // rows dated before this were archived
+    public Date getCutoff() {
+        return cutoff;
+    }
+
+    public long getAppointments() {
+        return appointments;
+    }
+
+    public long getAvailabilities() {
+        return availabilities;
+    }
+
+    @Override
+    public String toString() {
+        return "Archived " + appointments + " appointments and " + availabilities +
+                " availabilities dated before " + cutoff;
+    }
+}
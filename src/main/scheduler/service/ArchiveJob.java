@@ -0,0 +1,176 @@
+package scheduler.service;
+
+import scheduler.db.AvailabilityIndex;
+import scheduler.db.ConnectionManager;
+import scheduler.db.WriteCoordinator;
+import scheduler.util.Settings;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Moves appointments and availabilities dated before a cutoff into AppointmentsArchive and
+// AvailabilitiesArchive, so the tables every command reads only hold the current campaign.
+//
+// Rows move in chunks of batchSize, each chunk copied and deleted as one write of the shard's
+// WriteCoordinator: a chunk is either in the live table or in the archive, and bookings only wait
+// for one chunk at a time instead of for the whole run. With an interval the job also runs by itself, archiving whatever
+// is older than afterDays.
+public class ArchiveJob {
+
+    public static final String pastAppointments = "SELECT aid FROM Appointments WHERE Time < ? LIMIT ?";
+    public static final String archiveAppointment = "INSERT INTO AppointmentsArchive SELECT * FROM Appointments WHERE aid = ?";
+    public static final String deleteAppointment = "DELETE FROM Appointments WHERE aid = ?";
+    public static final String pastAvailabilities = "SELECT Time, Username FROM Availabilities WHERE Time < ? LIMIT ?";
+    // a caregiver can upload a date again after it was archived, the hours of both rows are kept
+    public static final String archiveAvailability = "INSERT INTO AvailabilitiesArchive SELECT * FROM Availabilities " +
+            "WHERE Time = ? AND Username = ? ON CONFLICT (Time, Username) DO UPDATE " +
+            "SET Slots = AvailabilitiesArchive.Slots | excluded.Slots, Booked = AvailabilitiesArchive.Booked | excluded.Booked";
+    public static final String deleteAvailability = "DELETE FROM Availabilities WHERE Time = ? AND Username = ?";
+
+    private final int batchSize;
+    private final int afterDays;
+    private final long intervalSeconds;
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    public ArchiveJob(int batchSize, int afterDays, long intervalSeconds) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive!");
+        }
+        if (afterDays < 0) {
+            throw new IllegalArgumentException("Archived rows must be in the past!");
+        }
+        this.batchSize = batchSize;
+        this.afterDays = afterDays;
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    // ArchiveBatchSize rows per transaction, rows older than ArchiveAfterDays, every ArchiveIntervalS
+    // seconds (0, the default, only archives when asked to)
+    public static ArchiveJob getDefault() {
+        return new ArchiveJob(Settings.getInt("ArchiveBatchSize", 500), Settings.getInt("ArchiveAfterDays", 90),
+                Settings.getLong("ArchiveIntervalS", 0));
+    }
+
+    // rows dated before this are archived when no cutoff is given, and no later cutoff is accepted
+    public Date getDefaultCutoff() {
+        return Date.valueOf(LocalDate.now().minusDays(afterDays));
+    }
+
+    // Runs archive(getDefaultCutoff()) every intervalSeconds, if it is positive and not running yet
+    public void start() {
+        if (intervalSeconds <= 0 || !started.compareAndSet(false, true)) {
+            return;
+        }
+        ScheduledExecutorService archiver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "archive-job");
+            t.setDaemon(true);
+            return t;
+        });
+        archiver.scheduleWithFixedDelay(() -> {
+            try {
+                archive(getDefaultCutoff());
+            } catch (SQLException e) {
+                // the chunks done so far stay archived, the next run carries on
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // A sharded database archives one shard after the other, each into its own archive tables. A
+    // cutoff after the default one would move appointments that can still be canceled and
+    // availabilities that can still be booked, so it is rejected.
+    public Archival archive(Date cutoff) throws SQLException {
+        Date latest = getDefaultCutoff();
+        if (cutoff.after(latest)) {
+            throw new IllegalArgumentException("The cutoff cannot be after " + latest + "!");
+        }
+        long appointments = 0;
+        long availabilities = 0;
+        for (int shard = 0; shard < ConnectionManager.getShardCount(); shard++) {
+            WriteCoordinator writer = WriteCoordinator.forShard(shard);
+            int moved;
+            while ((moved = writer.execute(con -> archiveAppointments(con, cutoff))) > 0) {
+                appointments += moved;
+            }
+            while ((moved = archiveAvailabilities(writer, cutoff)) > 0) {
+                availabilities += moved;
+            }
+        }
+        return new Archival(cutoff, appointments, availabilities);
+    }
+
+    // moves the next chunk, returns its size
+    private int archiveAppointments(Connection con, Date cutoff) throws SQLException {
+        List<Long> aids = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(pastAppointments)) {
+            statement.setDate(1, cutoff);
+            statement.setInt(2, batchSize);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    aids.add(resultSet.getLong(1));
+                }
+            }
+        }
+        try (PreparedStatement archive = con.prepareStatement(archiveAppointment);
+             PreparedStatement delete = con.prepareStatement(deleteAppointment)) {
+            for (long aid : aids) {
+                archive.setLong(1, aid);
+                archive.addBatch();
+                delete.setLong(1, aid);
+                delete.addBatch();
+            }
+            if (!aids.isEmpty()) {
+                archive.executeBatch();
+                delete.executeBatch();
+            }
+        }
+        return aids.size();
+    }
+
+    // the index learns about the chunk once it is committed
+    private int archiveAvailabilities(WriteCoordinator writer, Date cutoff) throws SQLException {
+        List<Date> dates = new ArrayList<>();
+        List<String> caregivers = new ArrayList<>();
+        writer.execute(con -> {
+            try (PreparedStatement statement = con.prepareStatement(pastAvailabilities)) {
+                statement.setDate(1, cutoff);
+                statement.setInt(2, batchSize);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        dates.add(resultSet.getDate(1));
+                        caregivers.add(resultSet.getString(2));
+                    }
+                }
+            }
+            try (PreparedStatement archive = con.prepareStatement(archiveAvailability);
+                 PreparedStatement delete = con.prepareStatement(deleteAvailability)) {
+                for (int i = 0; i < dates.size(); i++) {
+                    archive.setDate(1, dates.get(i));
+                    archive.setString(2, caregivers.get(i));
+                    archive.addBatch();
+                    delete.setDate(1, dates.get(i));
+                    delete.setString(2, caregivers.get(i));
+                    delete.addBatch();
+                }
+                if (!dates.isEmpty()) {
+                    archive.executeBatch();
+                    delete.executeBatch();
+                }
+            }
+            return dates.size();
+        });
+        for (int i = 0; i < dates.size(); i++) {
+            AvailabilityIndex.getInstance().setSlots(dates.get(i), caregivers.get(i), 0);
+        }
+        return dates.size();
+    }
+}
@@ -0,0 +1,76 @@
+package scheduler.service;
+
+import scheduler.util.TimeSlots;
+
+import java.sql.Date;
+
+public class Cancellation {
+
+    public enum Status {
+        CANCELED,
+        NOT_FOUND,
+        NOT_ALLOWED
+    }
+
+    private final Status status;
+    private final long appointmentId;
+    private final String vaccineName;
+    private final String patientName;
+    private final String caregiverName;
+    private final Date date;
+    private final int hour;
+
+    private Cancellation(Status status, long appointmentId, String vaccineName, String patientName,
+                         String caregiverName, Date date, int hour) {
+        this.status = status;
+        this.appointmentId = appointmentId;
+        this.vaccineName = vaccineName;
+        this.patientName = patientName;
+        this.caregiverName = caregiverName;
+        this.date = date;
+        this.hour = hour;
+    }
+
+    static Cancellation canceled(long appointmentId, String vaccineName, String patientName,
+                                 String caregiverName, Date date, int hour) {
+        return new Cancellation(Status.CANCELED, appointmentId, vaccineName, patientName, caregiverName, date, hour);
+    }
+
+    static Cancellation failed(Status status, long appointmentId) {
+        return new Cancellation(status, appointmentId, null, null, null, null, TimeSlots.ANY_HOUR);
+    }
+
+    // Getters
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isCanceled() {
+        return status == Status.CANCELED;
+    }
+
+    public long getAppointmentId() {
+        return appointmentId;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    public String getPatientName() {
+        return patientName;
+    }
+
+    public String getCaregiverName() {
+        return caregiverName;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    // TimeSlots.ANY_HOUR for an appointment booked before there were hours
+    public int getHour() {
+        return hour;
+    }
+}
@@ -0,0 +1,122 @@
+package scheduler.service;
+
+import scheduler.util.Settings;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Decides in which order reserve tries the caregivers available on a date. The first one whose
+// Availabilities row can still be claimed gets the appointment, so concurrent bookings that try
+// the caregivers in different orders claim different rows instead of racing for the same one.
+public interface CaregiverSelectionStrategy {
+
+    // candidates are in username order and may be reordered in place
+    List<String> order(Connection con, Date d, String patientName, List<String> candidates) throws SQLException;
+
+    // the strategy named by the CaregiverSelection setting: random (the default), least-loaded,
+    // round-robin, hashed or alphabetical
+    static CaregiverSelectionStrategy getDefault() {
+        String name = Settings.get("CaregiverSelection", "random");
+        try {
+            return named(name);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ignoring invalid value for CaregiverSelection: " + name);
+            return new RandomOrder();
+        }
+    }
+
+    static CaregiverSelectionStrategy named(String name) {
+        switch (name) {
+            case "random":
+                return new RandomOrder();
+            case "least-loaded":
+                return new LeastLoaded();
+            case "round-robin":
+                return new RoundRobin();
+            case "hashed":
+                return new HashedByPatient();
+            case "alphabetical":
+                return new Alphabetical();
+            default:
+                throw new IllegalArgumentException("Unknown caregiver selection strategy: " + name);
+        }
+    }
+
+    // The first caregiver by username, as reserve always did. Every concurrent booking on a date
+    // goes for the same row.
+    class Alphabetical implements CaregiverSelectionStrategy {
+        @Override
+        public List<String> order(Connection con, Date d, String patientName, List<String> candidates) {
+            return candidates;
+        }
+    }
+
+    class RandomOrder implements CaregiverSelectionStrategy {
+        @Override
+        public List<String> order(Connection con, Date d, String patientName, List<String> candidates) {
+            Collections.shuffle(candidates, ThreadLocalRandom.current());
+            return candidates;
+        }
+    }
+
+    // Each booking starts one caregiver further along than the one before it
+    class RoundRobin implements CaregiverSelectionStrategy {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public List<String> order(Connection con, Date d, String patientName, List<String> candidates) {
+            if (!candidates.isEmpty()) {
+                Collections.rotate(candidates, -Math.floorMod(next.getAndIncrement(), candidates.size()));
+            }
+            return candidates;
+        }
+    }
+
+    // A patient always starts at the same caregiver, so the same patient booking again on another
+    // date tends to see the same caregiver
+    class HashedByPatient implements CaregiverSelectionStrategy {
+        @Override
+        public List<String> order(Connection con, Date d, String patientName, List<String> candidates) {
+            if (!candidates.isEmpty()) {
+                Collections.rotate(candidates, -Math.floorMod(patientName.hashCode(), candidates.size()));
+            }
+            return candidates;
+        }
+    }
+
+    // Caregivers with the fewest appointments first, ties in random order so concurrent bookings
+    // still spread out. On a sharded database only the appointments in the date's shard count.
+    class LeastLoaded implements CaregiverSelectionStrategy {
+        public static final String countAppointments = "SELECT COUNT(*) FROM Appointments WHERE caregiver_name = ?";
+
+        @Override
+        public List<String> order(Connection con, Date d, String patientName, List<String> candidates)
+                throws SQLException {
+            Map<String, Integer> load = new HashMap<>();
+            try (PreparedStatement statement = con.prepareStatement(countAppointments)) {
+                for (String candidate : candidates) {
+                    statement.setString(1, candidate);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        resultSet.next();
+                        load.put(candidate, resultSet.getInt(1));
+                    }
+                }
+            }
+            List<String> ordered = new ArrayList<>(candidates);
+            Collections.shuffle(ordered, ThreadLocalRandom.current());
+            ordered.sort(Comparator.comparing(load::get));
+            return ordered;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package scheduler.service;
+
+// Outcome of creating a patient or caregiver account
+public class Registration {
+
+    public enum Status {
+        CREATED,
+        USERNAME_TAKEN
+    }
+
+    private final Status status;
+    private final String username;
+
+    Registration(Status status, String username) {
+        this.status = status;
+        this.username = username;
+    }
+
+    // Getters
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isCreated() {
+        return status == Status.CREATED;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public String toString() {
+        return "Registration{" +
+                "status=" + status +
+                ", username='" + username + '\'' +
+                '}';
+    }
+}
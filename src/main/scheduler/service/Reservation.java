@@ -0,0 +1,81 @@
+package scheduler.service;
+
+import scheduler.util.TimeSlots;
+
+import java.sql.Date;
+
+public class Reservation {
+
+    public enum Status {
+        BOOKED,
+        NO_DOSES,
+        NO_CAREGIVER
+    }
+
+    private final Status status;
+    private final long appointmentId;
+    private final String caregiverName;
+    private final Date date;
+    private final int hour;
+    private final String vaccineName;
+
+    private Reservation(Status status, long appointmentId, String caregiverName, Date date, int hour,
+                        String vaccineName) {
+        this.status = status;
+        this.appointmentId = appointmentId;
+        this.caregiverName = caregiverName;
+        this.date = date;
+        this.hour = hour;
+        this.vaccineName = vaccineName;
+    }
+
+    static Reservation booked(long appointmentId, String caregiverName, Date date, int hour, String vaccineName) {
+        return new Reservation(Status.BOOKED, appointmentId, caregiverName, date, hour, vaccineName);
+    }
+
+    static Reservation failed(Status status, Date date, String vaccineName) {
+        return new Reservation(status, 0, null, date, TimeSlots.ANY_HOUR, vaccineName);
+    }
+
+    // Getters
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isBooked() {
+        return status == Status.BOOKED;
+    }
+
+    public long getAppointmentId() {
+        return appointmentId;
+    }
+
+    public String getCaregiverName() {
+        return caregiverName;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    // the hour the appointment starts, see TimeSlots
+    public int getHour() {
+        return hour;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    @Override
+    public String toString() {
+        return "Reservation{" +
+                "status=" + status +
+                ", appointmentId=" + appointmentId +
+                ", caregiverName='" + caregiverName + '\'' +
+                ", date=" + date +
+                ", hour=" + hour +
+                ", vaccineName='" + vaccineName + '\'' +
+                '}';
+    }
+}
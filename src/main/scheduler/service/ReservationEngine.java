@@ -0,0 +1,524 @@
+package scheduler.service;
+
+import scheduler.db.AppointmentIdAllocator;
+import scheduler.db.AvailabilityIndex;
+import scheduler.db.HiLoAppointmentIdAllocator;
+import scheduler.db.ShardRouter;
+import scheduler.db.WriteCoordinator;
+import scheduler.metrics.Counter;
+import scheduler.metrics.Metrics;
+import scheduler.model.VaccineRepository;
+import scheduler.util.TimeSlots;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Books and cancels appointments.
+//
+// On a sharded database (see ShardRouter) the dose count lives in the catalog and the booking in
+// the date's shard, and no transaction spans both. Doses are taken from the catalog before the
+// shard's transaction and given back if it does not commit; a cancellation gives its dose back
+// after the shard's commit. A crash in between, or a dose return that fails after the cancellation
+// committed (counted in cancel_dose_return_errors_total), can only leave a dose unused, never sell
+// one twice.
+public class ReservationEngine {
+
+    public static final String findCaregivers = "SELECT Username, Slots & ~Booked AS Free FROM Availabilities " +
+            "WHERE Time = ? AND (Slots & ~Booked) != 0 ORDER BY Username";
+    // books the hour only if it is offered and still free
+    public static final String claimSlot = "UPDATE Availabilities SET Booked = Booked | ? " +
+            "WHERE Time = ? AND Username = ? AND (Slots & ~Booked & ?) != 0";
+    public static final String insertAppointment = "INSERT INTO Appointments VALUES (?, ?, ?, ?, ?, ?)";
+    public static final String takeDose = "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Doses > 0";
+    public static final String takeDoses = "UPDATE Vaccines SET Doses = Doses - ? WHERE Name = ? AND Doses >= ?";
+    public static final String checkDoses = "SELECT Doses FROM Vaccines WHERE Name = ?";
+    public static final String findAppointment = "SELECT vaccine_name, patient_name, caregiver_name, Time, Hour FROM Appointments WHERE aid = ?";
+    public static final String deleteAppointment = "DELETE FROM Appointments WHERE aid = ?";
+    public static final String returnDoses = "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ?";
+    public static final String returnSlot = "UPDATE Availabilities SET Booked = Booked & ~? WHERE Time = ? AND Username = ?";
+    // an appointment from before there were hours took the caregiver's whole day
+    public static final String returnDay = "INSERT INTO Availabilities SELECT ?, ?, ?, 0 " +
+            "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WHERE Time = ? AND Username = ?)";
+
+    private static final Counter doseReturnErrors = Metrics.getInstance().counter("cancel_dose_return_errors_total",
+            "Canceled appointments on a shard whose dose could not be given back to the catalog");
+
+    private final AppointmentIdAllocator idAllocator;
+    private final CaregiverSelectionStrategy selectionStrategy;
+
+    public ReservationEngine() {
+        this(HiLoAppointmentIdAllocator.getDefault(), CaregiverSelectionStrategy.getDefault());
+    }
+
+    public ReservationEngine(AppointmentIdAllocator idAllocator) {
+        this(idAllocator, CaregiverSelectionStrategy.getDefault());
+    }
+
+    public ReservationEngine(AppointmentIdAllocator idAllocator, CaregiverSelectionStrategy selectionStrategy) {
+        this.idAllocator = idAllocator;
+        this.selectionStrategy = selectionStrategy;
+    }
+
+    public AppointmentIdAllocator getIdAllocator() {
+        return idAllocator;
+    }
+
+    public CaregiverSelectionStrategy getSelectionStrategy() {
+        return selectionStrategy;
+    }
+
+    // Books one appointment for the patient at the earliest free hour of the caregiver it picks
+    public Reservation reserve(String patientName, Date d, String vaccineName) throws SQLException {
+        return reserve(patientName, d, TimeSlots.ANY_HOUR, vaccineName);
+    }
+
+    // Books one appointment for the patient at the hour, or at any hour if it is TimeSlots.ANY_HOUR, in
+    // a single transaction shared with other writes by the write coordinator
+    public Reservation reserve(String patientName, Date d, int hour, String vaccineName) throws SQLException {
+        // taken before the transaction starts: refilling the allocator's block needs a connection
+        // of its own, and an id wasted on a failed booking only leaves a gap
+        long appointmentId = idAllocator.nextId();
+        Reservation reservation;
+        if (ShardRouter.isSharded()) {
+            if (!takeDoses(vaccineName, 1)) {
+                return Reservation.failed(Reservation.Status.NO_DOSES, d, vaccineName);
+            }
+            reservation = bookOnShard(appointmentId, patientName, d, hour, vaccineName);
+            if (!reservation.isBooked()) {
+                returnDoses(vaccineName, 1);
+            }
+        } else {
+            reservation = WriteCoordinator.getInstance().execute(
+                    con -> reserve(con, appointmentId, patientName, d, hour, vaccineName), Reservation::isBooked);
+        }
+        if (reservation.isBooked()) {
+            booked(reservation);
+        }
+        return reservation;
+    }
+
+    // Books one appointment on con without committing, the caller owns the transaction and must
+    // roll it back when the reservation is not booked, or call booked() once it commits. The id
+    // should come from getIdAllocator() and be taken before the caller's transaction begins.
+    public Reservation reserve(Connection con, long appointmentId, String patientName, Date d, int hour,
+                               String vaccineName) throws SQLException {
+        // claim a caregiver first: the UPDATE only succeeds for one of any number of concurrent
+        // bookings of the same hour, the losers move on to the next caregiver instead of failing
+        Slot slot = claimCaregiver(con, d, hour, patientName);
+        if (slot == null) {
+            // report doses first, the same way the checks were ordered before
+            return Reservation.failed(hasDoses(con, vaccineName) ? Reservation.Status.NO_CAREGIVER
+                    : Reservation.Status.NO_DOSES, d, vaccineName);
+        }
+
+        insertAppointment(con, appointmentId, vaccineName, patientName, slot, d);
+
+        // the vaccine row is shared by every booking, so it is locked last to keep the lock short;
+        // the WHERE clause makes the decrement fail rather than oversell
+        try (PreparedStatement statement = con.prepareStatement(takeDose)) {
+            statement.setString(1, vaccineName);
+            if (statement.executeUpdate() == 0) {
+                return Reservation.failed(Reservation.Status.NO_DOSES, d, vaccineName);
+            }
+        }
+        return Reservation.booked(appointmentId, slot.caregiver, d, slot.hour, vaccineName);
+    }
+
+    // Books the caregiver's slot on con, the connection of the date's shard, without taking a dose:
+    // the caller has taken it from the catalog with takeDoses, and gives it back with returnDoses
+    // when the reservation is not booked or not committed. Otherwise the same contract as
+    // reserve(con, ...).
+    public Reservation reserveSlot(Connection con, long appointmentId, String patientName, Date d, int hour,
+                                   String vaccineName) throws SQLException {
+        Slot slot = claimCaregiver(con, d, hour, patientName);
+        if (slot == null) {
+            return Reservation.failed(Reservation.Status.NO_CAREGIVER, d, vaccineName);
+        }
+        insertAppointment(con, appointmentId, vaccineName, patientName, slot, d);
+        return Reservation.booked(appointmentId, slot.caregiver, d, slot.hour, vaccineName);
+    }
+
+    // reserveSlot on the date shard's writer, giving the dose back if the write fails
+    private Reservation bookOnShard(long appointmentId, String patientName, Date d, int hour, String vaccineName)
+            throws SQLException {
+        try {
+            return ShardRouter.writerFor(d).execute(
+                    con -> reserveSlot(con, appointmentId, patientName, d, hour, vaccineName), Reservation::isBooked);
+        } catch (SQLException | RuntimeException e) {
+            returnDosesQuietly(vaccineName, 1, e);
+            throw e;
+        }
+    }
+
+    // Books every dose of a series, starting on the start date and intervalDays apart, in one
+    // transaction: the patient gets all of the appointments or none of them
+    public SeriesReservation reserveSeries(String patientName, Date start, String vaccineName, int doses,
+                                           int intervalDays) throws SQLException {
+        return reserveSeries(patientName, start, TimeSlots.ANY_HOUR, vaccineName, doses, intervalDays);
+    }
+
+    // the same, every appointment at the hour unless it is TimeSlots.ANY_HOUR
+    public SeriesReservation reserveSeries(String patientName, Date start, int hour, String vaccineName, int doses,
+                                           int intervalDays) throws SQLException {
+        if (doses <= 0 || intervalDays <= 0) {
+            throw new IllegalArgumentException("Doses and interval must be positive!");
+        }
+        long[] appointmentIds = new long[doses];
+        for (int i = 0; i < doses; i++) {
+            appointmentIds[i] = idAllocator.nextId();
+        }
+        if (ShardRouter.isSharded()) {
+            return reserveSeriesOnShards(appointmentIds, patientName, start, hour, vaccineName, intervalDays);
+        }
+        SeriesReservation series = WriteCoordinator.getInstance().execute(
+                con -> reserveSeries(con, appointmentIds, patientName, start, hour, vaccineName, intervalDays),
+                SeriesReservation::isBooked);
+        if (series.isBooked()) {
+            for (Reservation reservation : series.getAppointments()) {
+                booked(reservation);
+            }
+        }
+        return series;
+    }
+
+    // Books one dose per id on con without committing, with the same contract as reserve(con, ...)
+    public SeriesReservation reserveSeries(Connection con, long[] appointmentIds, String patientName, Date start,
+                                           int hour, String vaccineName, int intervalDays) throws SQLException {
+        // every dose of the series at once, so a series is never left half booked for lack of doses
+        if (!takeDoses(con, vaccineName, appointmentIds.length)) {
+            return SeriesReservation.failed(Reservation.Status.NO_DOSES, null);
+        }
+
+        List<Reservation> appointments = new ArrayList<>();
+        for (int i = 0; i < appointmentIds.length; i++) {
+            Date d = Date.valueOf(start.toLocalDate().plusDays((long) i * intervalDays));
+            Slot slot = claimCaregiver(con, d, hour, patientName);
+            if (slot == null) {
+                return SeriesReservation.failed(Reservation.Status.NO_CAREGIVER, d);
+            }
+            insertAppointment(con, appointmentIds[i], vaccineName, patientName, slot, d);
+            appointments.add(Reservation.booked(appointmentIds[i], slot.caregiver, d, slot.hour, vaccineName));
+        }
+        return SeriesReservation.booked(appointments);
+    }
+
+    // The dates of a series are usually in different shards, so each one is booked in a transaction
+    // of its own. When one cannot be booked the ones before it are released again, and the doses,
+    // all taken up front, go back to the catalog.
+    private SeriesReservation reserveSeriesOnShards(long[] appointmentIds, String patientName, Date start, int hour,
+                                                    String vaccineName, int intervalDays) throws SQLException {
+        int doses = appointmentIds.length;
+        if (!takeDoses(vaccineName, doses)) {
+            return SeriesReservation.failed(Reservation.Status.NO_DOSES, null);
+        }
+        List<Reservation> appointments = new ArrayList<>();
+        Date unavailable = null;
+        try {
+            for (int i = 0; i < doses && unavailable == null; i++) {
+                Date d = Date.valueOf(start.toLocalDate().plusDays((long) i * intervalDays));
+                long appointmentId = appointmentIds[i];
+                Reservation reservation = ShardRouter.writerFor(d).execute(
+                        con -> reserveSlot(con, appointmentId, patientName, d, hour, vaccineName), Reservation::isBooked);
+                if (reservation.isBooked()) {
+                    appointments.add(reservation);
+                } else {
+                    unavailable = d;
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            returnDosesQuietly(vaccineName, doses - release(appointments), e);
+            throw e;
+        }
+        if (unavailable != null) {
+            returnDoses(vaccineName, doses - release(appointments));
+            return SeriesReservation.failed(Reservation.Status.NO_CAREGIVER, unavailable);
+        }
+        for (Reservation reservation : appointments) {
+            booked(reservation);
+        }
+        return SeriesReservation.booked(appointments);
+    }
+
+    // Deletes committed bookings of a series that did not go through and frees their slots, returns
+    // how many could not be released and keep their dose
+    private int release(List<Reservation> appointments) {
+        int kept = 0;
+        for (Reservation reservation : appointments) {
+            try {
+                ShardRouter.writerFor(reservation.getDate()).execute(con -> {
+                    deleteAppointment(con, reservation.getAppointmentId());
+                    returnSlot(con, reservation.getDate(), reservation.getCaregiverName(), reservation.getHour());
+                    return null;
+                });
+            } catch (SQLException | RuntimeException e) {
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    // Cancels an appointment of the given patient or caregiver in one transaction, giving the dose and
+    // the caregiver's slot back. On a sharded database the cancellation stands once the shard
+    // commits: a dose that cannot be given back after that is counted, not reported as a failure.
+    public Cancellation cancel(long appointmentId, String username) throws SQLException {
+        Cancellation cancellation;
+        boolean doseReturned = true;
+        if (ShardRouter.isSharded()) {
+            int shard = findShard(appointmentId);
+            if (shard < 0) {
+                return Cancellation.failed(Cancellation.Status.NOT_FOUND, appointmentId);
+            }
+            cancellation = WriteCoordinator.forShard(shard).execute(
+                    con -> cancel(con, appointmentId, username, false), Cancellation::isCanceled);
+            if (cancellation.isCanceled()) {
+                try {
+                    returnDoses(cancellation.getVaccineName(), 1);
+                } catch (SQLException | RuntimeException e) {
+                    doseReturnErrors.increment();
+                    doseReturned = false;
+                }
+            }
+        } else {
+            cancellation = WriteCoordinator.getInstance().execute(
+                    con -> cancel(con, appointmentId, username), Cancellation::isCanceled);
+        }
+        if (cancellation.isCanceled()) {
+            canceled(cancellation, doseReturned);
+        }
+        return cancellation;
+    }
+
+    // Cancels on con without committing, the caller owns the transaction and calls canceled() once
+    // it commits
+    public Cancellation cancel(Connection con, long appointmentId, String username) throws SQLException {
+        return cancel(con, appointmentId, username, true);
+    }
+
+    // the dose goes back on con only if the vaccines are in the same database
+    private Cancellation cancel(Connection con, long appointmentId, String username, boolean returnDose)
+            throws SQLException {
+        String vaccineName;
+        String patientName;
+        String caregiverName;
+        Date d;
+        int hour;
+        try (PreparedStatement statement = con.prepareStatement(findAppointment)) {
+            statement.setLong(1, appointmentId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return Cancellation.failed(Cancellation.Status.NOT_FOUND, appointmentId);
+                }
+                vaccineName = resultSet.getString("vaccine_name");
+                patientName = resultSet.getString("patient_name");
+                caregiverName = resultSet.getString("caregiver_name");
+                d = resultSet.getDate("Time");
+                hour = resultSet.getInt("Hour");
+                if (resultSet.wasNull()) {
+                    hour = TimeSlots.ANY_HOUR;
+                }
+            }
+        }
+        if (!username.equals(patientName) && !username.equals(caregiverName)) {
+            return Cancellation.failed(Cancellation.Status.NOT_ALLOWED, appointmentId);
+        }
+
+        if (!deleteAppointment(con, appointmentId)) {
+            return Cancellation.failed(Cancellation.Status.NOT_FOUND, appointmentId);
+        }
+        returnSlot(con, d, caregiverName, hour);
+        if (returnDose) {
+            returnDoses(con, vaccineName, 1);
+        }
+        return Cancellation.canceled(appointmentId, vaccineName, patientName, caregiverName, d, hour);
+    }
+
+    // The shard an appointment is in, -1 if there is none with that id
+    private static int findShard(long appointmentId) throws SQLException {
+        List<Boolean> found = ShardRouter.fanOut(null, con -> {
+            try (PreparedStatement statement = con.prepareStatement(findAppointment)) {
+                statement.setLong(1, appointmentId);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next();
+                }
+            }
+        });
+        return found.indexOf(true);
+    }
+
+    // Takes n doses in a catalog write of its own, false if there are not that many left
+    public boolean takeDoses(String vaccineName, int n) throws SQLException {
+        return WriteCoordinator.getInstance().execute(con -> takeDoses(con, vaccineName, n), taken -> taken);
+    }
+
+    // Gives n doses back in a catalog write of its own
+    public void returnDoses(String vaccineName, int n) throws SQLException {
+        if (n > 0) {
+            WriteCoordinator.getInstance().execute(con -> {
+                returnDoses(con, vaccineName, n);
+                return null;
+            });
+        }
+    }
+
+    // after a failed booking, without hiding why it failed
+    void returnDosesQuietly(String vaccineName, int n, Exception cause) {
+        try {
+            returnDoses(vaccineName, n);
+        } catch (SQLException | RuntimeException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    // Bring the availability index and vaccine cache up to date with a committed reservation
+    public void booked(Reservation reservation) {
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        index.removeSlots(reservation.getDate(), reservation.getCaregiverName(), TimeSlots.bit(reservation.getHour()));
+        index.addDoses(reservation.getVaccineName(), -1);
+        VaccineRepository.getInstance().adjustCachedDoses(reservation.getVaccineName(), -1);
+    }
+
+    // Bring the availability index and vaccine cache up to date with a committed cancellation
+    public void canceled(Cancellation cancellation) {
+        canceled(cancellation, true);
+    }
+
+    // the slot is free either way, the dose only if it made it back to the catalog
+    private void canceled(Cancellation cancellation, boolean doseReturned) {
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        if (cancellation.getHour() == TimeSlots.ANY_HOUR) {
+            index.addSlotsIfAbsent(cancellation.getDate(), cancellation.getCaregiverName(), TimeSlots.LEGACY_DAY);
+        } else {
+            index.addSlots(cancellation.getDate(), cancellation.getCaregiverName(), TimeSlots.bit(cancellation.getHour()));
+        }
+        if (doseReturned) {
+            index.addDoses(cancellation.getVaccineName(), 1);
+            VaccineRepository.getInstance().adjustCachedDoses(cancellation.getVaccineName(), 1);
+        }
+    }
+
+    // A caregiver free at the hour, or at any hour, with that hour booked, null if there is none
+    private Slot claimCaregiver(Connection con, Date d, int hour, String patientName) throws SQLException {
+        Map<String, Long> free = new HashMap<>();
+        List<String> candidates = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(findCaregivers)) {
+            statement.setDate(1, d);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    String caregiver = resultSet.getString("Username");
+                    long slots = resultSet.getLong("Free");
+                    if (hour == TimeSlots.ANY_HOUR || (slots & TimeSlots.bit(hour)) != 0) {
+                        free.put(caregiver, slots);
+                        candidates.add(caregiver);
+                    }
+                }
+            }
+        }
+        try (PreparedStatement statement = con.prepareStatement(claimSlot)) {
+            for (String candidate : selectionStrategy.order(con, d, patientName, candidates)) {
+                int claimed = hour == TimeSlots.ANY_HOUR ? TimeSlots.earliest(free.get(candidate)) : hour;
+                statement.setLong(1, TimeSlots.bit(claimed));
+                statement.setDate(2, d);
+                statement.setString(3, candidate);
+                statement.setLong(4, TimeSlots.bit(claimed));
+                // the row count decides who got the hour
+                if (statement.executeUpdate() == 1) {
+                    return new Slot(candidate, claimed);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void insertAppointment(Connection con, long appointmentId, String vaccineName, String patientName,
+                                          Slot slot, Date d) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(insertAppointment)) {
+            statement.setLong(1, appointmentId);
+            statement.setString(2, vaccineName);
+            statement.setString(3, patientName);
+            statement.setString(4, slot.caregiver);
+            statement.setDate(5, d);
+            statement.setInt(6, slot.hour);
+            statement.executeUpdate();
+        }
+    }
+
+    private static boolean deleteAppointment(Connection con, long appointmentId) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(deleteAppointment)) {
+            statement.setLong(1, appointmentId);
+            return statement.executeUpdate() > 0;
+        }
+    }
+
+    private static void returnSlot(Connection con, Date d, String caregiver, int hour) throws SQLException {
+        if (hour == TimeSlots.ANY_HOUR) {
+            try (PreparedStatement statement = con.prepareStatement(returnDay)) {
+                statement.setDate(1, d);
+                statement.setString(2, caregiver);
+                statement.setLong(3, TimeSlots.LEGACY_DAY);
+                statement.setDate(4, d);
+                statement.setString(5, caregiver);
+                statement.executeUpdate();
+            }
+            return;
+        }
+        try (PreparedStatement statement = con.prepareStatement(returnSlot)) {
+            statement.setLong(1, TimeSlots.bit(hour));
+            statement.setDate(2, d);
+            statement.setString(3, caregiver);
+            statement.executeUpdate();
+        }
+    }
+
+    private static boolean takeDoses(Connection con, String vaccineName, int n) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(takeDoses)) {
+            statement.setInt(1, n);
+            statement.setString(2, vaccineName);
+            statement.setInt(3, n);
+            return statement.executeUpdate() > 0;
+        }
+    }
+
+    private static void returnDoses(Connection con, String vaccineName, int n) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(returnDoses)) {
+            statement.setInt(1, n);
+            statement.setString(2, vaccineName);
+            statement.executeUpdate();
+        }
+    }
+
+    private boolean hasDoses(Connection con, String vaccineName) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(checkDoses)) {
+            statement.setString(1, vaccineName);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getInt("Doses") > 0;
+            }
+        }
+    }
+
+    // the caregiver and hour claimCaregiver booked
+    private static class Slot {
+        private final String caregiver;
+        private final int hour;
+
+        Slot(String caregiver, int hour) {
+            this.caregiver = caregiver;
+            this.hour = hour;
+        }
+    }
+
+    // a failed BEGIN or COMMIT may leave no transaction to roll back, don't let that hide the real error
+    static void rollbackQuietly(Connection con, SQLException cause) {
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            cause.addSuppressed(e);
+        }
+    }
+}
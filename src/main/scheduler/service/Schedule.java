@@ -0,0 +1,58 @@
+package scheduler.service;
+
+import scheduler.util.TimeSlots;
+
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+
+// Who can give a vaccine on a date and at which hours, and the doses left of every vaccine
+public class Schedule {
+
+    private final Date date;
+    private final SortedMap<String, Long> slots;
+    private final SortedMap<String, Integer> doses;
+
+    Schedule(Date date, SortedMap<String, Long> slots, SortedMap<String, Integer> doses) {
+        this.date = date;
+        this.slots = slots;
+        this.doses = doses;
+    }
+
+    // Getters
+    public Date getDate() {
+        return date;
+    }
+
+    // in username order
+    public List<String> getCaregivers() {
+        return new ArrayList<>(slots.keySet());
+    }
+
+    // the free hours of every caregiver with any, by username (see TimeSlots)
+    public SortedMap<String, Long> getSlots() {
+        return slots;
+    }
+
+    // by vaccine name
+    public SortedMap<String, Integer> getDoses() {
+        return doses;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder caregivers = new StringBuilder();
+        for (SortedMap.Entry<String, Long> entry : slots.entrySet()) {
+            if (caregivers.length() > 0) {
+                caregivers.append(", ");
+            }
+            caregivers.append(entry.getKey()).append(' ').append(TimeSlots.format(entry.getValue()));
+        }
+        return "Schedule{" +
+                "date=" + date +
+                ", caregivers=[" + caregivers + "]" +
+                ", doses=" + doses +
+                '}';
+    }
+}
@@ -0,0 +1,370 @@
+package scheduler.service;
+
+import scheduler.db.AvailabilityIndex;
+import scheduler.db.ConnectionManager;
+import scheduler.db.ShardRouter;
+import scheduler.db.UsernameRegistry;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.Vaccine;
+import scheduler.model.VaccineRepository;
+import scheduler.util.PasswordHasher;
+import scheduler.util.Settings;
+import scheduler.util.TimeSlots;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Everything the scheduler can do, as calls that return right away and complete on the executor.
+//
+// Results are typed instead of printed, and independent calls overlap: a caller can start a
+// hundred reservations and then wait for all of them. Database failures complete the future
+// exceptionally with the SQLException, invalid arguments with an IllegalArgumentException.
+// Who is logged in is up to the caller, the Scheduler console keeps it in its Session.
+public class SchedulerService {
+
+    // longest series reserveSeries books
+    public static final int MAX_SERIES_DOSES = 6;
+
+    public static final String findCaregivers = "SELECT C.Username, A.Slots & ~A.Booked AS Free " +
+            "FROM Caregivers C, Availabilities A WHERE A.Username = C.Username AND Time = ? " +
+            "AND (A.Slots & ~A.Booked) != 0 ORDER BY C.Username";
+    // a shard has no Caregivers to join with
+    public static final String findShardCaregivers = "SELECT Username, Slots & ~Booked AS Free FROM Availabilities " +
+            "WHERE Time = ? AND (Slots & ~Booked) != 0 ORDER BY Username";
+    public static final String allVaccines = "SELECT * FROM Vaccines V ORDER BY V.Name";
+
+    private final ReservationEngine engine;
+    private final WaitlistService waitlist;
+    private final ArchiveJob archiveJob;
+    private final Executor executor;
+
+    public SchedulerService(ReservationEngine engine, WaitlistService waitlist, Executor executor) {
+        this(engine, waitlist, ArchiveJob.getDefault(), executor);
+    }
+
+    public SchedulerService(ReservationEngine engine, WaitlistService waitlist, ArchiveJob archiveJob,
+                            Executor executor) {
+        this.engine = engine;
+        this.waitlist = waitlist;
+        this.archiveJob = archiveJob;
+        this.executor = executor;
+    }
+
+    // ServiceThreads daemon threads, enough to keep the connection pool busy
+    public static ExecutorService defaultExecutor() {
+        AtomicInteger threads = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, Settings.getInt("ServiceThreads", 8)), r -> {
+            Thread t = new Thread(r, "scheduler-service-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public CompletableFuture<Registration> createPatient(String username, String password) {
+        return submit(() -> {
+            if (UsernameRegistry.patients().exists(username)) {
+                return new Registration(Registration.Status.USERNAME_TAKEN, username);
+            }
+            byte[] salt = PasswordHasher.getDefault().newSalt();
+            byte[] hash = PasswordHasher.getDefault().hash(password, salt);
+            new Patient.PatientBuilder(username, salt, hash).build().saveToDB();
+            ConnectionManager.wrote(username);
+            return new Registration(Registration.Status.CREATED, username);
+        });
+    }
+
+    public CompletableFuture<Registration> createCaregiver(String username, String password) {
+        return submit(() -> {
+            if (UsernameRegistry.caregivers().exists(username)) {
+                return new Registration(Registration.Status.USERNAME_TAKEN, username);
+            }
+            byte[] salt = PasswordHasher.getDefault().newSalt();
+            byte[] hash = PasswordHasher.getDefault().hash(password, salt);
+            new Caregiver.CaregiverBuilder(username, salt, hash).build().saveToDB();
+            ConnectionManager.wrote(username);
+            return new Registration(Registration.Status.CREATED, username);
+        });
+    }
+
+    // empty if the username or password is wrong
+    public CompletableFuture<Optional<Patient>> loginPatient(String username, String password) {
+        return submit(() -> Optional.ofNullable(new Patient.PatientGetter(username, password).get()));
+    }
+
+    public CompletableFuture<Optional<Caregiver>> loginCaregiver(String username, String password) {
+        return submit(() -> Optional.ofNullable(new Caregiver.CaregiverGetter(username, password).get()));
+    }
+
+    // served from the availability index once it is loaded, from the database until then
+    public CompletableFuture<Schedule> searchSchedule(Date d) {
+        return submit(() -> {
+            AvailabilityIndex index = AvailabilityIndex.getInstance();
+            if (index.isReady()) {
+                return new Schedule(d, index.getSlots(d), new TreeMap<>(index.getDoses()));
+            }
+            TreeMap<String, Long> slots = new TreeMap<>();
+            TreeMap<String, Integer> doses = new TreeMap<>();
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createReadConnection(null);
+            if (con == null) {
+                throw new SQLException("No connection available");
+            }
+            try {
+                if (ShardRouter.isSharded()) {
+                    ConnectionManager shard = ShardRouter.forDate(d);
+                    Connection shardCon = shard.createReadConnection(null);
+                    if (shardCon == null) {
+                        throw new SQLException("No connection available");
+                    }
+                    try {
+                        findCaregivers(shardCon, findShardCaregivers, d, slots);
+                    } finally {
+                        shard.closeConnection();
+                    }
+                } else {
+                    findCaregivers(con, findCaregivers, d, slots);
+                }
+                try (PreparedStatement statement = con.prepareStatement(allVaccines);
+                     ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        doses.put(resultSet.getString("Name"), resultSet.getInt("Doses"));
+                    }
+                }
+            } finally {
+                cm.closeConnection();
+            }
+            return new Schedule(d, slots, doses);
+        });
+    }
+
+    private static void findCaregivers(Connection con, String query, Date d, Map<String, Long> slots)
+            throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(query)) {
+            statement.setDate(1, d);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    slots.put(resultSet.getString("Username"), resultSet.getLong("Free"));
+                }
+            }
+        }
+    }
+
+    public CompletableFuture<Reservation> reserve(String patientName, Date d, String vaccineName) {
+        return reserve(patientName, d, TimeSlots.ANY_HOUR, vaccineName);
+    }
+
+    // at hour, or at the earliest free hour of the caregiver chosen if it is TimeSlots.ANY_HOUR
+    public CompletableFuture<Reservation> reserve(String patientName, Date d, int hour, String vaccineName) {
+        return submit(() -> {
+            Reservation reservation = engine.reserve(patientName, d, hour, vaccineName);
+            ConnectionManager.wrote(patientName);
+            return reservation;
+        });
+    }
+
+    // doses appointments intervalDays apart starting on start, all of them or none
+    public CompletableFuture<SeriesReservation> reserveSeries(String patientName, Date start, String vaccineName,
+                                                              int doses, int intervalDays) {
+        return reserveSeries(patientName, start, TimeSlots.ANY_HOUR, vaccineName, doses, intervalDays);
+    }
+
+    // every appointment of the series at hour, unless it is TimeSlots.ANY_HOUR
+    public CompletableFuture<SeriesReservation> reserveSeries(String patientName, Date start, int hour,
+                                                              String vaccineName, int doses, int intervalDays) {
+        return submit(() -> {
+            if (doses <= 0 || doses > MAX_SERIES_DOSES || intervalDays <= 0) {
+                throw new IllegalArgumentException("A series is 1 to " + MAX_SERIES_DOSES + " doses at least a day apart!");
+            }
+            SeriesReservation series = engine.reserveSeries(patientName, start, hour, vaccineName, doses,
+                    intervalDays);
+            ConnectionManager.wrote(patientName);
+            return series;
+        });
+    }
+
+    // username is whoever asks, only the patient or the caregiver of the appointment may cancel it
+    public CompletableFuture<Cancellation> cancel(long appointmentId, String username) {
+        return submit(() -> {
+            Cancellation cancellation = engine.cancel(appointmentId, username);
+            ConnectionManager.wrote(username);
+            if (cancellation.isCanceled()) {
+                waitlist.availabilityFreed(cancellation.getDate());
+            }
+            return cancellation;
+        });
+    }
+
+    // Creates the vaccine if it is new, returns it with its doses after the update
+    public CompletableFuture<Vaccine> addDoses(String vaccineName, int doses) {
+        return submit(() -> {
+            Vaccine vaccine = VaccineRepository.getInstance().get(vaccineName);
+            if (vaccine == null) {
+                vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
+                vaccine.saveToDB();
+            } else {
+                vaccine.increaseAvailableDoses(doses);
+            }
+            waitlist.dosesAdded(vaccineName);
+            return vaccine;
+        });
+    }
+
+    // the clinic's hours, see TimeSlots.clinicDay
+    public CompletableFuture<Void> uploadAvailability(Caregiver caregiver, Date d) {
+        return uploadAvailability(caregiver, d, TimeSlots.clinicDay());
+    }
+
+    // adds slots to the hours the caregiver offers on d, see TimeSlots
+    public CompletableFuture<Void> uploadAvailability(Caregiver caregiver, Date d, long slots) {
+        return submit(() -> {
+            caregiver.uploadAvailability(d, slots);
+            ConnectionManager.wrote(caregiver.getUsername());
+            waitlist.availabilityFreed(d);
+            return null;
+        });
+    }
+
+    // returns how many of the dates gained hours
+    public CompletableFuture<Integer> uploadAvailability(Caregiver caregiver, Collection<Date> dates) {
+        return uploadAvailability(caregiver, dates, TimeSlots.clinicDay());
+    }
+
+    public CompletableFuture<Integer> uploadAvailability(Caregiver caregiver, Collection<Date> dates, long slots) {
+        return submit(() -> {
+            int uploaded = caregiver.uploadAvailability(dates, slots);
+            ConnectionManager.wrote(caregiver.getUsername());
+            for (Date d : dates) {
+                waitlist.availabilityFreed(d);
+            }
+            return uploaded;
+        });
+    }
+
+    // returns the patient's place in the queue, 1 is next
+    public CompletableFuture<Integer> joinWaitlist(String patientName, Date d, String vaccineName) {
+        return submit(() -> waitlist.join(patientName, d, vaccineName));
+    }
+
+    // false if the patient was not waiting
+    public CompletableFuture<Boolean> leaveWaitlist(String patientName, Date d, String vaccineName) {
+        return submit(() -> waitlist.leave(patientName, d, vaccineName));
+    }
+
+    // Moves appointments and availabilities dated before cutoff, or before the archive job's default
+    // cutoff if it is null, into the archive tables
+    public CompletableFuture<Archival> archive(Date cutoff) {
+        return submit(() -> archiveJob.archive(cutoff != null ? cutoff : archiveJob.getDefaultCutoff()));
+    }
+
+    // Appointments after afterAid in aid order, between start and end if they are not null, at most
+    // pageSize of them unless it is 0. Keyset pagination: the (name, aid) index finds where the page
+    // starts without reading the rows before it, and one row more than the page tells whether there
+    // is a next one. A sharded database is asked for a page from every shard and the pages are
+    // merged, still in aid order.
+    public CompletableFuture<AppointmentPage> showAppointments(String username, boolean caregiver, Date start,
+                                                               Date end, int pageSize, long afterAid) {
+        return showAppointments(username, caregiver, start, end, pageSize, afterAid, false);
+    }
+
+    // the same, from AppointmentsArchive when archived is true
+    public CompletableFuture<AppointmentPage> showAppointments(String username, boolean caregiver, Date start,
+                                                               Date end, int pageSize, long afterAid,
+                                                               boolean archived) {
+        return submit(() -> {
+            if (pageSize < 0) {
+                throw new IllegalArgumentException("Page size cannot be negative!");
+            }
+            String query = appointmentsQuery(caregiver, archived, start != null, pageSize > 0);
+            List<Appointment> appointments = new ArrayList<>();
+            for (List<Appointment> shardPage : ShardRouter.fanOut(username, con -> {
+                List<Appointment> found = new ArrayList<>();
+                try (PreparedStatement statement = con.prepareStatement(query)) {
+                    int i = 1;
+                    statement.setString(i++, username);
+                    statement.setLong(i++, afterAid);
+                    if (start != null) {
+                        statement.setDate(i++, start);
+                        statement.setDate(i++, end);
+                    }
+                    if (pageSize > 0) {
+                        statement.setInt(i, pageSize + 1);
+                    }
+                    statement.setFetchSize(pageSize > 0 ? pageSize + 1 : 500);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            // wasNull is about the column read last, so Hour is checked first
+                            int hour = resultSet.getInt(4);
+                            if (resultSet.wasNull()) {
+                                hour = TimeSlots.ANY_HOUR;
+                            }
+                            found.add(new Appointment(resultSet.getLong(1), resultSet.getString(2),
+                                    resultSet.getDate(3), hour, resultSet.getString(5)));
+                        }
+                    }
+                }
+                return found;
+            })) {
+                appointments.addAll(shardPage);
+            }
+            appointments.sort(Comparator.comparingLong(Appointment::getAppointmentId));
+            boolean hasMore = pageSize > 0 && appointments.size() > pageSize;
+            if (hasMore) {
+                appointments = new ArrayList<>(appointments.subList(0, pageSize));
+            }
+            return new AppointmentPage(appointments, hasMore);
+        });
+    }
+
+    // showAppointments' query: the caregiver's or the patient's appointments after an aid, from the
+    // archive or not, between two dates and limited to a page when asked
+    public static String appointmentsQuery(boolean caregiver, boolean archived, boolean ranged, boolean paged) {
+        String table = archived ? "AppointmentsArchive" : "Appointments";
+        String apptInfo = caregiver
+                ? "SELECT aid, vaccine_name, Time, Hour, patient_name FROM " + table + " WHERE caregiver_name = ? AND aid > ?"
+                : "SELECT aid, vaccine_name, Time, Hour, caregiver_name FROM " + table + " WHERE patient_name = ? AND aid > ?";
+        if (ranged) {
+            apptInfo += " AND Time >= ? AND Time <= ?";
+        }
+        apptInfo += " ORDER BY aid";
+        if (paged) {
+            apptInfo += " LIMIT ?";
+        }
+        return apptInfo;
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        // a batch's connection belongs to the thread that began it, so its commands run right there
+        Executor target = ConnectionManager.isBatching() ? Runnable::run : executor;
+        try {
+            target.execute(() -> {
+                try {
+                    future.complete(operation.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
@@ -0,0 +1,55 @@
+package scheduler.service;
+
+import java.sql.Date;
+import java.util.Collections;
+import java.util.List;
+
+// Outcome of booking every dose of a series: either all appointments or none
+public class SeriesReservation {
+
+    private final Reservation.Status status;
+    private final List<Reservation> appointments;
+    private final Date failedDate;
+
+    private SeriesReservation(Reservation.Status status, List<Reservation> appointments, Date failedDate) {
+        this.status = status;
+        this.appointments = appointments;
+        this.failedDate = failedDate;
+    }
+
+    static SeriesReservation booked(List<Reservation> appointments) {
+        return new SeriesReservation(Reservation.Status.BOOKED, Collections.unmodifiableList(appointments), null);
+    }
+
+    // failedDate is the first date without a caregiver, null when the doses ran out
+    static SeriesReservation failed(Reservation.Status status, Date failedDate) {
+        return new SeriesReservation(status, Collections.emptyList(), failedDate);
+    }
+
+    // Getters
+    public Reservation.Status getStatus() {
+        return status;
+    }
+
+    public boolean isBooked() {
+        return status == Reservation.Status.BOOKED;
+    }
+
+    // one per dose in date order, empty unless booked
+    public List<Reservation> getAppointments() {
+        return appointments;
+    }
+
+    public Date getFailedDate() {
+        return failedDate;
+    }
+
+    @Override
+    public String toString() {
+        return "SeriesReservation{" +
+                "status=" + status +
+                ", appointments=" + appointments +
+                ", failedDate=" + failedDate +
+                '}';
+    }
+}
@@ -0,0 +1,124 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+import scheduler.util.TimeSlots;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+// Checks SchedulerService against a scratch database, behaviour the query plans can't show.
+//
+// Creates a database from sqlite/create.sql in a temporary directory, seeds the rows each check
+// needs and calls the service the way the console does. Exits with status 1 if a check fails; the
+// build runs it in the test phase after QueryPlanChecker:
+//   java -cp vaccine-scheduler.jar:sqlite-jdbc.jar scheduler.service.ServiceChecker
+public class ServiceChecker {
+
+    private static final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws IOException, SQLException {
+        // before anything reads the settings
+        Path dir = Files.createTempDirectory("scheduler-check");
+        System.setProperty("DBPath", dir.resolve("check.db").toString());
+        System.setProperty("Shards", "1");
+        System.setProperty("AvailabilityIndex", "false");
+        createDatabase();
+
+        SchedulerService service = new SchedulerService(new ReservationEngine(),
+                new WaitlistService(new ReservationEngine(), 100, 0), Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "service-checker");
+                    t.setDaemon(true);
+                    return t;
+                }));
+        checkAppointmentHours(service);
+
+        if (!failures.isEmpty()) {
+            System.out.println("Failed checks:");
+            for (String failure : failures) {
+                System.out.println("  " + failure);
+            }
+            System.exit(1);
+        }
+        System.out.println("All service checks passed");
+        System.exit(0);
+    }
+
+    // an appointment booked before there were hours has a NULL Hour and shows without one
+    private static void checkAppointmentHours(SchedulerService service) throws SQLException {
+        Date d = Date.valueOf("2030-01-01");
+        execute("INSERT INTO Caregivers VALUES ('cg1', NULL, NULL)");
+        execute("INSERT INTO Patients VALUES ('p1', NULL, NULL)");
+        execute("INSERT INTO Vaccines VALUES ('pfizer', 10)");
+        execute("INSERT INTO Appointments VALUES (1, 'pfizer', 'p1', 'cg1', ?, 10)", d);
+        execute("INSERT INTO Appointments VALUES (2, 'pfizer', 'p1', 'cg1', ?, NULL)", d);
+
+        List<Appointment> appointments = service.showAppointments("p1", false, null, null, 0, 0).join()
+                .getAppointments();
+        check("showAppointments returns both appointments", appointments.size() == 2);
+        if (appointments.size() == 2) {
+            check("an appointment with an hour keeps it", appointments.get(0).getHour() == 10);
+            check("an appointment without an hour has ANY_HOUR",
+                    appointments.get(1).getHour() == TimeSlots.ANY_HOUR);
+            check("an appointment without an hour prints no time",
+                    appointments.get(1).toString().equals("2 pfizer " + d + " cg1"));
+        }
+    }
+
+    private static void check(String name, boolean passed) {
+        System.out.println((passed ? "ok      " : "FAILED  ") + name);
+        if (!passed) {
+            failures.add(name);
+        }
+    }
+
+    private static void execute(String sql, Date... dates) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            for (int i = 0; i < dates.length; i++) {
+                statement.setDate(i + 1, dates[i]);
+            }
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void createDatabase() throws IOException, SQLException {
+        String script;
+        try (InputStream in = ServiceChecker.class.getResourceAsStream("/sqlite/create.sql")) {
+            if (in == null) {
+                throw new IOException("sqlite/create.sql is not on the classpath");
+            }
+            script = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (Statement statement = con.createStatement()) {
+            for (String sql : script.split(";")) {
+                if (!sql.replaceAll("--.*", "").isBlank()) {
+                    statement.executeUpdate(sql);
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
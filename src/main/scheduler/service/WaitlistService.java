@@ -0,0 +1,390 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.ShardRouter;
+import scheduler.db.WriteCoordinator;
+import scheduler.util.TimeSlots;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Patients waiting for a date and vaccine, booked first come first served as capacity frees up.
+//
+// The queue lives in the Waitlist table. Whatever frees capacity (a cancellation, new availability,
+// more doses) reports it here, and a single matcher thread books the longest waiting patients for
+// it in batches of batchSize, one transaction per batch, through ReservationEngine. Events are
+// coalesced: many cancellations on one date while the matcher is busy lead to one pass over it.
+// Waiters wait for a date, not an hour, and get the earliest free hour of the caregiver chosen.
+// Capacity freed by other processes is picked up by a full sweep every sweepSeconds, which also
+// drops the waiters whose date has passed. A batch is one write of the write coordinator's, like
+// any other booking.
+//
+// On a sharded database each waiter is booked on their date's shard on its own, the dose taken from
+// the catalog first, and leaves the queue once the booking has committed. A crash in between leaves
+// the booked waiter queued, to be booked once more; losing their place instead would go unnoticed.
+public class WaitlistService {
+
+    public static final String joinWaitlist = "INSERT INTO Waitlist VALUES (?, ?, ?, ?) ON CONFLICT DO NOTHING";
+    public static final String leaveWaitlist = "DELETE FROM Waitlist WHERE patient_name = ? AND Time = ? AND vaccine_name = ?";
+    public static final String waitersByDate = "SELECT patient_name, vaccine_name, Time FROM Waitlist WHERE Time = ? " +
+            "ORDER BY Joined, patient_name LIMIT ?";
+    public static final String waitersByVaccine = "SELECT patient_name, vaccine_name, Time FROM Waitlist WHERE vaccine_name = ? " +
+            "AND Time >= ? ORDER BY Joined, patient_name LIMIT ?";
+    public static final String waitingDates = "SELECT DISTINCT Time FROM Waitlist";
+    public static final String expireWaiters = "DELETE FROM Waitlist WHERE Time < ?";
+
+    public static final String position = "SELECT COUNT(*) FROM Waitlist W WHERE W.Time = ? AND W.vaccine_name = ? " +
+            "AND W.Joined <= (SELECT Joined FROM Waitlist WHERE patient_name = ? AND Time = ? AND vaccine_name = ?)";
+
+    private final ReservationEngine engine;
+    private final int batchSize;
+    private final long sweepSeconds;
+    private final Set<Date> freedDates = ConcurrentHashMap.newKeySet();
+    private final Set<String> restockedVaccines = ConcurrentHashMap.newKeySet();
+    // ids taken from the allocator that no booking has used yet, only the matcher thread touches them
+    private final Deque<Long> spareIds = new ArrayDeque<>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final Object signal = new Object();
+    private boolean pending = false;
+
+    public WaitlistService(ReservationEngine engine, int batchSize, long sweepSeconds) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive!");
+        }
+        this.engine = engine;
+        this.batchSize = batchSize;
+        this.sweepSeconds = sweepSeconds;
+    }
+
+    // Queues the patient, returns their place in the queue for that date and vaccine (1 is next)
+    public int join(String patientName, Date d, String vaccineName) throws SQLException {
+        if (d.before(today())) {
+            throw new IllegalArgumentException("That date has passed!");
+        }
+        WriteCoordinator.getInstance().execute(con -> {
+            try (PreparedStatement statement = con.prepareStatement(joinWaitlist)) {
+                statement.setString(1, patientName);
+                statement.setString(2, vaccineName);
+                statement.setDate(3, d);
+                statement.setLong(4, System.currentTimeMillis());
+                return statement.executeUpdate();
+            }
+        });
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        int place;
+        try {
+            try (PreparedStatement statement = con.prepareStatement(position)) {
+                statement.setDate(1, d);
+                statement.setString(2, vaccineName);
+                statement.setString(3, patientName);
+                statement.setDate(4, d);
+                statement.setString(5, vaccineName);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    place = resultSet.getInt(1);
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        // there may be capacity already, e.g. freed by another process since the last sweep
+        availabilityFreed(d);
+        return place;
+    }
+
+    // Returns false if the patient was not waiting for that date and vaccine
+    public boolean leave(String patientName, Date d, String vaccineName) throws SQLException {
+        return WriteCoordinator.getInstance().execute(con -> {
+            try (PreparedStatement statement = con.prepareStatement(leaveWaitlist)) {
+                statement.setString(1, patientName);
+                statement.setDate(2, d);
+                statement.setString(3, vaccineName);
+                return statement.executeUpdate() > 0;
+            }
+        });
+    }
+
+    // A caregiver slot opened up on the date
+    public void availabilityFreed(Date d) {
+        freedDates.add(d);
+        wake();
+    }
+
+    // The vaccine got more doses
+    public void dosesAdded(String vaccineName) {
+        restockedVaccines.add(vaccineName);
+        wake();
+    }
+
+    private void wake() {
+        start();
+        synchronized (signal) {
+            pending = true;
+            signal.notify();
+        }
+    }
+
+    // Starts the matcher and the periodic sweep, if they are not running yet
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        Thread matcher = new Thread(this::matchLoop, "waitlist-matcher");
+        matcher.setDaemon(true);
+        matcher.start();
+        if (sweepSeconds > 0) {
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "waitlist-sweep");
+                t.setDaemon(true);
+                return t;
+            });
+            sweeper.scheduleWithFixedDelay(this::sweep, sweepSeconds, sweepSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    // Drops the waiters whose date has passed, then queues every date somebody is still waiting
+    // for, e.g. at startup or for capacity freed elsewhere
+    public void sweep() {
+        try {
+            WriteCoordinator.getInstance().execute(con -> {
+                try (PreparedStatement statement = con.prepareStatement(expireWaiters)) {
+                    statement.setDate(1, today());
+                    return statement.executeUpdate();
+                }
+            });
+        } catch (SQLException | RuntimeException e) {
+            // the next sweep will try again
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            return;
+        }
+        try (PreparedStatement statement = con.prepareStatement(waitingDates);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                freedDates.add(resultSet.getDate(1));
+            }
+        } catch (SQLException e) {
+            // the next sweep will try again
+        } finally {
+            cm.closeConnection();
+        }
+        if (!freedDates.isEmpty()) {
+            wake();
+        }
+    }
+
+    private void matchLoop() {
+        while (true) {
+            synchronized (signal) {
+                while (!pending) {
+                    try {
+                        signal.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                pending = false;
+            }
+            Date today = today();
+            for (Date d : drain(freedDates)) {
+                // nobody can be booked on a day that is over, the sweep drops its waiters
+                if (!d.before(today)) {
+                    matchAll(waitersByDate, d);
+                }
+            }
+            for (String vaccineName : drain(restockedVaccines)) {
+                matchAll(waitersByVaccine, vaccineName);
+            }
+        }
+    }
+
+    private static <T> List<T> drain(Set<T> events) {
+        List<T> drained = new ArrayList<>();
+        for (T event : events) {
+            if (events.remove(event)) {
+                drained.add(event);
+            }
+        }
+        return drained;
+    }
+
+    // keeps booking batches until a batch runs out of capacity or waiters
+    private void matchAll(String query, Object key) {
+        try {
+            while (matchBatch(query, key) == batchSize) {
+                // the whole batch was booked, there may be capacity for more
+            }
+        } catch (SQLException e) {
+            // leave the patients queued, the next event or sweep for this capacity retries
+        }
+    }
+
+    // Books as many of the next batchSize waiters as there is capacity for, returns how many
+    private int matchBatch(String query, Object key) throws SQLException {
+        List<Waiter> waiters = new ArrayList<>();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement statement = con.prepareStatement(query)) {
+            int i = 1;
+            if (key instanceof Date) {
+                statement.setDate(i++, (Date) key);
+            } else {
+                statement.setString(i++, (String) key);
+                statement.setDate(i++, today());
+            }
+            statement.setInt(i, batchSize);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    waiters.add(new Waiter(resultSet.getString(1), resultSet.getString(2), resultSet.getDate(3)));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        if (waiters.isEmpty()) {
+            return 0;
+        }
+        if (ShardRouter.isSharded()) {
+            return matchOnShards(waiters);
+        }
+
+        // The whole batch is one write, in the transaction of whatever group it is committed with.
+        // A write can't wait for the allocator, whose blocks are writes too, so there is an id ready
+        // for every waiter; only the waiters that get booked use theirs up, the others stay spare
+        // for the next batch instead of running the sequence ahead of the appointments.
+        while (spareIds.size() < waiters.size()) {
+            spareIds.add(engine.getIdAllocator().nextId());
+        }
+        Deque<Long> ids = new ArrayDeque<>(spareIds);
+        List<Reservation> booked = WriteCoordinator.getInstance().execute(writeCon -> bookBatch(writeCon, waiters, ids));
+        // committed, what the batch did not use is still spare
+        spareIds.clear();
+        spareIds.addAll(ids);
+        for (Reservation reservation : booked) {
+            engine.booked(reservation);
+        }
+        return booked.size() == waiters.size() ? booked.size() : 0;
+    }
+
+    // takes an id from ids for each booking and puts it back if the booking fails
+    private List<Reservation> bookBatch(Connection con, List<Waiter> waiters, Deque<Long> ids) throws SQLException {
+        List<Reservation> booked = new ArrayList<>();
+        Set<Date> noCaregiver = new HashSet<>();
+        Set<String> noDoses = new HashSet<>();
+        for (Waiter waiter : waiters) {
+            if (noCaregiver.contains(waiter.date) || noDoses.contains(waiter.vaccineName)) {
+                continue;
+            }
+            // a failed booking may have claimed a caregiver already, undo just that one
+            Savepoint savepoint = con.setSavepoint();
+            long appointmentId = ids.pop();
+            Reservation reservation = engine.reserve(con, appointmentId, waiter.patientName,
+                    waiter.date, TimeSlots.ANY_HOUR, waiter.vaccineName);
+            if (!reservation.isBooked()) {
+                con.rollback(savepoint);
+                ids.push(appointmentId);
+                if (reservation.getStatus() == Reservation.Status.NO_CAREGIVER) {
+                    noCaregiver.add(waiter.date);
+                } else {
+                    noDoses.add(waiter.vaccineName);
+                }
+                continue;
+            }
+            con.releaseSavepoint(savepoint);
+            try (PreparedStatement statement = con.prepareStatement(leaveWaitlist)) {
+                statement.setString(1, waiter.patientName);
+                statement.setDate(2, waiter.date);
+                statement.setString(3, waiter.vaccineName);
+                statement.executeUpdate();
+            }
+            booked.add(reservation);
+        }
+        return booked;
+    }
+
+    private static Date today() {
+        return Date.valueOf(LocalDate.now());
+    }
+
+    // matchBatch for a sharded database, one booking at a time on the date's shard. Nothing here
+    // runs inside a write, so the id is only taken once the dose is, and goes back to the spare ids
+    // if no caregiver is booked with it.
+    private int matchOnShards(List<Waiter> waiters) throws SQLException {
+        int matched = 0;
+        Set<Date> noCaregiver = new HashSet<>();
+        Set<String> noDoses = new HashSet<>();
+        for (Waiter waiter : waiters) {
+            if (noCaregiver.contains(waiter.date) || noDoses.contains(waiter.vaccineName)) {
+                continue;
+            }
+            if (!engine.takeDoses(waiter.vaccineName, 1)) {
+                noDoses.add(waiter.vaccineName);
+                continue;
+            }
+            Reservation reservation;
+            long appointmentId;
+            try {
+                appointmentId = spareIds.isEmpty() ? engine.getIdAllocator().nextId() : spareIds.pop();
+            } catch (SQLException | RuntimeException e) {
+                engine.returnDosesQuietly(waiter.vaccineName, 1, e);
+                throw e;
+            }
+            try {
+                reservation = ShardRouter.writerFor(waiter.date).execute(con -> engine.reserveSlot(con,
+                        appointmentId, waiter.patientName, waiter.date, TimeSlots.ANY_HOUR, waiter.vaccineName),
+                        Reservation::isBooked);
+            } catch (SQLException | RuntimeException e) {
+                spareIds.push(appointmentId);
+                engine.returnDosesQuietly(waiter.vaccineName, 1, e);
+                throw e;
+            }
+            if (!reservation.isBooked()) {
+                spareIds.push(appointmentId);
+                engine.returnDoses(waiter.vaccineName, 1);
+                noCaregiver.add(waiter.date);
+                continue;
+            }
+            engine.booked(reservation);
+            leave(waiter.patientName, waiter.date, waiter.vaccineName);
+            matched++;
+        }
+        return matched == waiters.size() ? matched : 0;
+    }
+
+    private static class Waiter {
+        private final String patientName;
+        private final String vaccineName;
+        private final Date date;
+
+        Waiter(String patientName, String vaccineName, Date date) {
+            this.patientName = patientName;
+            this.vaccineName = vaccineName;
+            this.date = date;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package scheduler.util;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Hashes and checks passwords on a dedicated, bounded pool of threads.
+//
+// Hashes are stored as "$pbkdf2$<algorithm>$<iterations>$<key bits>$<base64 key>" so the cost can
+// be raised later without invalidating existing rows: verify() reads the parameters back from the
+// stored value, and needsRehash() tells the login path to upgrade hashes made with older settings.
+// Rows written before this format existed hold a bare PBKDF2WithHmacSHA1 key (10 iterations,
+// 16 bits) and are still accepted.
+public class PasswordHasher {
+
+    private static final String PREFIX = "$pbkdf2$";
+    private static final String LEGACY_ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int LEGACY_ITERATIONS = 10;
+    private static final int LEGACY_KEY_LENGTH = 16;
+    private static final int SALT_LENGTH = 16;
+
+    // SecretKeyFactory and SecureRandom lookups are expensive and neither is meant to be shared
+    // between threads, so every thread keeps its own
+    private static final ThreadLocal<Map<String, SecretKeyFactory>> factories = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<SecureRandom> randoms = ThreadLocal.withInitial(SecureRandom::new);
+
+    private final String algorithm;
+    private final int iterations;
+    private final int keyLength;
+    private final ThreadPoolExecutor executor;
+
+    public PasswordHasher(String algorithm, int iterations, int keyLength, int threads, int queueSize) {
+        if (iterations <= 0 || keyLength <= 0 || threads <= 0 || queueSize <= 0) {
+            throw new IllegalArgumentException("Hash parameters must be positive!");
+        }
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.keyLength = keyLength;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new HasherThread(r);
+                    t.setDaemon(true);
+                    return t;
+                }, (task, pool) -> {
+                    // a full queue makes the submitter wait for room rather than fail the login
+                    try {
+                        pool.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+    }
+
+    // the process-wide hasher, configured by HashAlgorithm, HashIterations, HashKeyLength,
+    // HashThreads and HashQueueSize
+    public static PasswordHasher getDefault() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    // Getters
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public byte[] newSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        randoms.get().nextBytes(salt);
+        return salt;
+    }
+
+    // Hash with the current settings, waiting for a hashing thread
+    public byte[] hash(String password, byte[] salt) {
+        return await(hashAsync(password, salt));
+    }
+
+    public CompletableFuture<byte[]> hashAsync(String password, byte[] salt) {
+        return submit(() -> encode(password, salt));
+    }
+
+    // Check a password against a stored hash in either format, waiting for a hashing thread
+    public boolean verify(String password, byte[] salt, byte[] stored) {
+        return await(verifyAsync(password, salt, stored));
+    }
+
+    public CompletableFuture<Boolean> verifyAsync(String password, byte[] salt, byte[] stored) {
+        return submit(() -> matches(password, salt, stored));
+    }
+
+    // True when the stored hash was not made with the current settings
+    public boolean needsRehash(byte[] stored) {
+        String[] parts = parse(stored);
+        return parts == null || !parts[0].equals(algorithm)
+                || Integer.parseInt(parts[1]) != iterations || Integer.parseInt(parts[2]) != keyLength;
+    }
+
+    private byte[] encode(String password, byte[] salt) {
+        byte[] key = derive(password, salt, algorithm, iterations, keyLength);
+        String encoded = PREFIX + algorithm + "$" + iterations + "$" + keyLength + "$"
+                + Base64.getEncoder().withoutPadding().encodeToString(key);
+        return encoded.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private boolean matches(String password, byte[] salt, byte[] stored) {
+        if (stored == null) {
+            return false;
+        }
+        String[] parts = parse(stored);
+        if (parts == null) {
+            byte[] key = derive(password, salt, LEGACY_ALGORITHM, LEGACY_ITERATIONS, LEGACY_KEY_LENGTH);
+            return MessageDigest.isEqual(Util.trim(stored), Util.trim(key));
+        }
+        byte[] key = derive(password, salt, parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        return MessageDigest.isEqual(Base64.getDecoder().decode(parts[3]), key);
+    }
+
+    // algorithm, iterations, key bits and key of a versioned hash, null for a legacy one
+    private static String[] parse(byte[] stored) {
+        String value = new String(stored, StandardCharsets.US_ASCII);
+        if (!value.startsWith(PREFIX)) {
+            return null;
+        }
+        String[] parts = value.substring(PREFIX.length()).split("\\$");
+        return parts.length == 4 ? parts : null;
+    }
+
+    static byte[] derive(String password, byte[] salt, String algorithm, int iterations, int keyLength) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyLength);
+        try {
+            SecretKeyFactory factory = factories.get().get(algorithm);
+            if (factory == null) {
+                factory = SecretKeyFactory.getInstance(algorithm);
+                factories.get().put(algorithm, factory);
+            }
+            return factory.generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    static SecureRandom random() {
+        return randoms.get();
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        // already on a hashing thread (e.g. a batch of hashes fanned out by the caller): run inline
+        // instead of queueing behind ourselves
+        if (Thread.currentThread() instanceof HasherThread) {
+            return CompletableFuture.completedFuture(task.get());
+        }
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static class HasherThread extends Thread {
+        HasherThread(Runnable r) {
+            super(r, "password-hasher");
+        }
+    }
+
+    private static class DefaultHolder {
+        private static final PasswordHasher DEFAULT = new PasswordHasher(
+                Settings.get("HashAlgorithm", "PBKDF2WithHmacSHA256"),
+                Settings.getInt("HashIterations", 10_000),
+                Settings.getInt("HashKeyLength", 256),
+                Settings.getInt("HashThreads", Runtime.getRuntime().availableProcessors()),
+                Settings.getInt("HashQueueSize", 1024));
+    }
+}
@@ -0,0 +1,101 @@
+package scheduler.util;
+
+// The hours of one day as bits of a long: bit h stands for the hour from h:00 to h+1:00.
+//
+// An Availabilities row keeps two of these, the hours the caregiver offers (Slots) and the ones
+// already booked (Booked), so a caregiver takes up one row per day however many appointments they
+// give. Hours are written as 9 or 09 or 09:00, and sets of them as from-to ranges with the end
+// hour excluded, e.g. 09-12,13-17.
+public class TimeSlots {
+
+    public static final int HOURS = 24;
+    // reserve takes the earliest free hour of the caregiver it picks, and an appointment booked
+    // before there were hours has none
+    public static final int ANY_HOUR = -1;
+    // 9:00 to 17:00, what rows from before there were hours offer (see SchemaMigrator)
+    public static final long LEGACY_DAY = range(9, 17);
+
+    private static final long CLINIC_DAY = parseClinicHours();
+
+    // the hours a date uploaded without any offers, ClinicHours (default 09-17)
+    public static long clinicDay() {
+        return CLINIC_DAY;
+    }
+
+    public static long bit(int hour) {
+        if (hour < 0 || hour >= HOURS) {
+            throw new IllegalArgumentException("Hour out of range: " + hour);
+        }
+        return 1L << hour;
+    }
+
+    // from (included) to (excluded)
+    public static long range(int from, int to) {
+        if (from < 0 || to > HOURS || from >= to) {
+            throw new IllegalArgumentException("Invalid hours: " + from + "-" + to);
+        }
+        return (1L << to) - (1L << from);
+    }
+
+    // the earliest hour in slots, ANY_HOUR if there is none
+    public static int earliest(long slots) {
+        return slots == 0 ? ANY_HOUR : Long.numberOfTrailingZeros(slots);
+    }
+
+    public static int parseHour(String hour) {
+        String digits = hour.endsWith(":00") ? hour.substring(0, hour.length() - 3) : hour;
+        if (!digits.matches("[0-9]{1,2}")) {
+            throw new IllegalArgumentException("Invalid hour: " + hour);
+        }
+        int parsed = Integer.parseInt(digits);
+        bit(parsed);
+        return parsed;
+    }
+
+    public static long parse(String hours) {
+        long slots = 0;
+        for (String part : hours.split(",")) {
+            String[] bounds = part.split("-");
+            if (bounds.length != 2) {
+                throw new IllegalArgumentException("Invalid hours: " + part);
+            }
+            slots |= range(parseHour(bounds[0]), bounds[1].equals("24") ? HOURS : parseHour(bounds[1]));
+        }
+        return slots;
+    }
+
+    public static String formatHour(int hour) {
+        return String.format("%02d:00", hour);
+    }
+
+    // the ranges parse reads back
+    public static String format(long slots) {
+        StringBuilder formatted = new StringBuilder();
+        int hour = 0;
+        while (hour < HOURS) {
+            if ((slots & bit(hour)) == 0) {
+                hour++;
+                continue;
+            }
+            int from = hour;
+            while (hour < HOURS && (slots & bit(hour)) != 0) {
+                hour++;
+            }
+            if (formatted.length() > 0) {
+                formatted.append(',');
+            }
+            formatted.append(String.format("%02d-%02d", from, hour));
+        }
+        return formatted.toString();
+    }
+
+    private static long parseClinicHours() {
+        String hours = Settings.get("ClinicHours", "09-17");
+        try {
+            return parse(hours);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ignoring invalid value for ClinicHours: " + hours);
+            return LEGACY_DAY;
+        }
+    }
+}